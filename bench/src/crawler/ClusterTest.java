@@ -0,0 +1,180 @@
+package crawler;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * End to end test of a distributed crawl on one machine. A StubSite serving a
+ * complete tree spread over several loopback hosts is started, then one headless
+ * crawler JVM per node is started on loopback ports and the test waits for all of
+ * them to exit. The crawl passes if every page was parsed by exactly one node. Run
+ * with `gradle :bench:clusterTest --args='--node-count=3 --hosts=16 --depth=4'`.
+ * <p>
+ * The site is described by --fan-out (default 10), --depth (default 3), --latency
+ * in milliseconds (default 20), --back-links (default 2) and --hosts (default 16),
+ * the cluster by --node-count (default 3), every other argument is a CrawlConfig
+ * key passed to every node. Politeness is off unless given.
+ * <p>
+ * Every run also has a stranger at 127.0.0.2, which is not a node, connect to node
+ * 0 and send it a link. The test fails unless node 0 drops the connection unread.
+ * <p>
+ * With --lost-nodes=n the last n nodes are never started, and the test passes if
+ * every started node fails the crawl and exits within --node-timeout (default 10
+ * seconds here) instead of waiting for them forever.
+ */
+class ClusterTest {
+
+    private static final Pattern parsed_pages = Pattern.compile("Parsed pages: (\\d+)");
+
+    /**
+     * Runs a single distributed crawl.
+     *
+     * @param args site, cluster and crawl settings of the form --key=value
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var fan_out = 10;
+        var depth = 3;
+        var latency = 20L;
+        var back_links = 2;
+        var hosts = 16;
+        var node_count = 3;
+        var lost_nodes = 0;
+        final var crawl_args = new ArrayList<String>();
+        crawl_args.add("--politeness=false");
+        for (var arg : args) {
+            final var value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--fan-out=")) fan_out = Integer.parseInt(value);
+            else if (arg.startsWith("--depth=")) depth = Integer.parseInt(value);
+            else if (arg.startsWith("--latency=")) latency = Long.parseLong(value);
+            else if (arg.startsWith("--back-links=")) back_links = Integer.parseInt(value);
+            else if (arg.startsWith("--hosts=")) hosts = Integer.parseInt(value);
+            else if (arg.startsWith("--node-count=")) node_count = Integer.parseInt(value);
+            else if (arg.startsWith("--lost-nodes=")) lost_nodes = Integer.parseInt(value);
+            else crawl_args.add(arg);
+        }
+        if (fan_out < 1 || depth < 0 || latency < 0 || back_links < 0 || node_count < 1) throw new IllegalArgumentException("site invalid");
+        if (lost_nodes < 0 || lost_nodes >= node_count) throw new IllegalArgumentException("lost nodes invalid");
+        if (lost_nodes > 0 && crawl_args.stream().noneMatch(arg -> arg.startsWith("--node-timeout="))) crawl_args.add("--node-timeout=10");
+        final var started_nodes = node_count - lost_nodes;
+        final var pages = StubSite.treeSize(fan_out, depth);
+
+        try (var site = new StubSite(pages, fan_out, back_links, latency, hosts)) {
+            final var nodes = new ArrayList<String>();
+            for (var node = 0; node < node_count; node++) nodes.add("127.0.0.1:" + freePort());
+            System.out.printf("Site: %d pages on %d hosts, fan-out %d, depth %d, latency %d ms, %d back links%n",
+                    pages, hosts, fan_out, depth, latency, back_links);
+            System.out.printf("Cluster: %s, %d lost%n", String.join(",", nodes), lost_nodes);
+
+            final var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            final var started = System.nanoTime();
+            final var outputs = new ArrayList<CompletableFuture<List<String>>>();
+            final var processes = new ArrayList<Process>();
+            for (var node = 0; node < started_nodes; node++) {
+                final var command = new ArrayList<String>(List.of(java, "-cp", System.getProperty("java.class.path"), "crawler.CrawlerCli"));
+                command.addAll(crawl_args);
+                command.add("--url=" + site.url(0));
+                command.add("--nodes=" + String.join(",", nodes));
+                command.add("--node=" + node);
+                final var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                processes.add(process);
+                outputs.add(CompletableFuture.supplyAsync(() -> lines(process)));
+            }
+            final var stranger_dropped = strangerDropped(nodes.get(0), site.url(0) + "?stranger");
+            System.out.println("Stranger dropped: " + stranger_dropped);
+            var total = 0L;
+            var failed = false;
+            var crawls_failed = 0;
+            for (var node = 0; node < started_nodes; node++) {
+                failed |= processes.get(node).waitFor() != 0;
+                final var lines = outputs.get(node).join();
+                var parsed = 0L;
+                for (var line : lines) {
+                    final var matcher = parsed_pages.matcher(line);
+                    if (matcher.find()) parsed = Long.parseLong(matcher.group(1));
+                    if (line.startsWith("Crawl failed: ")) crawls_failed++;
+                }
+                total += parsed;
+                System.out.printf("Node %d: %d pages%n", node, parsed);
+                for (var line : lines) System.out.println("  " + line);
+            }
+            final var seconds = (System.nanoTime() - started) / 1e9;
+            System.out.printf(Locale.ROOT, "Pages: %d of %d in %.2f s, %.1f pages/s%n", total, pages, seconds, total / seconds);
+            if (!stranger_dropped) System.exit(1);
+            if (lost_nodes > 0) {
+                System.out.printf("Failed crawls: %d of %d started nodes%n", crawls_failed, started_nodes);
+                if (crawls_failed != started_nodes) System.exit(1);
+            }
+            else if (failed || total != pages) System.exit(1);
+        }
+    }
+
+    // An ephemeral port free at the time of the call
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Sends a node a link from an address that is not a node, returning whether the node closed the connection unread
+    private static boolean strangerDropped(String node, String url) throws InterruptedException {
+        final var colon = node.lastIndexOf(':');
+        final var address = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        // The node may still be starting
+        for (var attempt = 0; attempt < 100; attempt++) {
+            try (var socket = new Socket()) {
+                socket.bind(new InetSocketAddress("127.0.0.2", 0));
+                try {
+                    socket.connect(address, 1000);
+                }
+                catch (IOException refused) {
+                    Thread.sleep(100L);
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout(5000);
+                    final var out = new DataOutputStream(socket.getOutputStream());
+                    // A LINKS message of Cluster holding a single link
+                    out.writeByte(1);
+                    out.writeInt(1);
+                    out.writeUTF(url);
+                    out.writeInt(1);
+                    out.flush();
+                    return socket.getInputStream().read() < 0;
+                }
+                catch (SocketTimeoutException kept) {
+                    return false;
+                }
+                catch (IOException reset) {
+                    return true;
+                }
+            }
+            catch (IOException unbound) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Reads the output of a node until it exits
+    private static List<String> lines(Process process) {
+        final var lines = new ArrayList<String>();
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (var line = reader.readLine(); line != null; line = reader.readLine()) lines.add(line);
+        }
+        catch (IOException ignored) {}
+        return lines;
+    }
+}
@@ -0,0 +1,73 @@
+package crawler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a full crawl of a StubSite with the blocking ThreadPoolExecutor engine
+ * against the async HttpClient engine. Every response is delayed, so the crawl
+ * is bound by how many requests can be in flight at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FetchEngineBenchmark {
+
+    @Param({"BLOCKING", "ASYNC"})
+    public String engine;
+
+    @Param({"16", "100"})
+    public int workers;
+
+    @Param({"1000"})
+    public int max_in_flight;
+
+    @Param({"50"})
+    public long latency;
+
+    @Param({"2000"})
+    public int pages;
+
+    @Param({"10"})
+    public int fan_out;
+
+    private StubSite site;
+
+    @Setup
+    public void setup() throws IOException {
+        site = new StubSite(pages, fan_out, latency);
+    }
+
+    @TearDown
+    public void tearDown() {
+        site.close();
+    }
+
+    @Benchmark
+    public int crawl() throws IOException, InterruptedException {
+        final var config = new CrawlConfig();
+        config.start_url = site.url(0);
+        config.worker_count = workers;
+        config.engine = CrawlConfig.Engine.valueOf(engine);
+        config.max_in_flight = max_in_flight;
+        // The stub is a single host, per-host limits would measure the scheduler rather than the engine
+        config.politeness = false;
+        final var done = new CountDownLatch(1);
+        final var crawler = new Crawler(config, new Crawler.Listener() {
+            @Override
+            public void finished() {
+                done.countDown();
+            }
+        });
+        crawler.start();
+        done.await();
+        if (crawler.parsedPages() != pages) throw new IllegalStateException("crawled " + crawler.parsedPages() + " of " + pages + " pages");
+        return crawler.parsedPages();
+    }
+}
@@ -0,0 +1,73 @@
+package crawler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests that a url is claimed exactly once however many workers claim it at the
+ * same moment, for every Frontier mode. Each round has thread_count threads
+ * released together claim the same urls, each starting at a different url so
+ * that all of them race on every url. A url claimed twice fails the test at once.
+ * A Bloom filter may mistake a new url for a claimed one, so with it no more urls
+ * than its false positive rate allows may go unclaimed.
+ * Run with `gradle :bench:frontierTest`, exits with 1 on the first failed check.
+ */
+class FrontierTest {
+
+    private static final int url_count = 20_000;
+    private static final int thread_count = 8;
+    private static final int rounds = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        final var urls = new String[url_count];
+        for (var i = 0; i < url_count; i++) urls[i] = "http://example.com/p/" + i;
+        for (var mode : Frontier.Mode.values()) {
+            var unclaimed = 0;
+            for (var round = 0; round < rounds; round++) {
+                final var frontier = new Frontier(mode, url_count);
+                final var claims = new AtomicIntegerArray(url_count);
+                final var start = new CountDownLatch(1);
+                final var threads = new Thread[thread_count];
+                for (var t = 0; t < thread_count; t++) {
+                    final var offset = t * (url_count / thread_count);
+                    threads[t] = new Thread(() -> {
+                        try {
+                            start.await();
+                        }
+                        catch (InterruptedException interrupted) {
+                            return;
+                        }
+                        for (var i = 0; i < url_count; i++) {
+                            final var at = (offset + i) % url_count;
+                            if (frontier.claim(urls[at])) claims.incrementAndGet(at);
+                        }
+                    });
+                    threads[t].start();
+                }
+                start.countDown();
+                for (var thread : threads) thread.join();
+                var claimed = 0;
+                for (var i = 0; i < url_count; i++) {
+                    if (claims.get(i) > 1) fail(mode + ": " + urls[i] + " claimed " + claims.get(i) + " times");
+                    if (claims.get(i) == 1) claimed++;
+                }
+                unclaimed += url_count - claimed;
+                check(mode + " size", frontier.size(), (long)claimed);
+                check(mode + " fetches avoided", frontier.fetchesAvoided(), (long)url_count * thread_count - claimed);
+            }
+            // The filter is sized for url_count at a 0.1% false positive rate, allow ten times that
+            if (mode != Frontier.Mode.BLOOM) check(mode + " unclaimed", unclaimed, 0);
+            else if (unclaimed > url_count * rounds / 100) fail(mode + ": " + unclaimed + " urls never claimed");
+        }
+        System.out.println("Frontier test passed");
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        if (!expected.equals(actual)) fail(name + ": " + actual + ", expected " + expected);
+    }
+
+    private static void fail(String message) {
+        System.err.println("Frontier test failed, " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,79 @@
+package crawler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Supplies the (href, parent url) pairs used by the link benchmarks. A corpus file
+ * holds one pair per line separated by a tab; without one a deterministic corpus
+ * is generated from the href shapes commonly found on real pages.
+ */
+class HrefCorpus {
+
+    private static final String[] hosts = {"example.com", "www.Example.org", "news.site.net:443", "shop.store.io", "docs.project.dev"};
+    private static final String[] segments = {"about", "blog", "2022", "posts", "products", "category", "en-us", "wiki", "a", "index.html"};
+    private static final String[] tracking = {"utm_source=newsletter", "utm_medium=email", "gclid=Cj0KCQ", "fbclid=IwAR3"};
+
+    final String[] links;
+    final String[] bases;
+
+    private HrefCorpus(List<String[]> pairs) {
+        links = new String[pairs.size()];
+        bases = new String[pairs.size()];
+        for (var i = 0; i < pairs.size(); i++) {
+            links[i] = pairs.get(i)[0];
+            bases[i] = pairs.get(i)[1];
+        }
+    }
+
+    /**
+     * @param file corpus file to read, or an empty string to generate one
+     * @param size number of pairs to generate when no file is given
+     * @return the corpus
+     */
+    static HrefCorpus load(String file, int size) throws IOException {
+        final var pairs = new ArrayList<String[]>();
+        if (!file.isEmpty()) {
+            for (var line : Files.readAllLines(Path.of(file))) {
+                final var tab = line.indexOf('\t');
+                if (tab > 0) pairs.add(new String[]{line.substring(0, tab), line.substring(tab + 1)});
+            }
+            return new HrefCorpus(pairs);
+        }
+        final var random = new Random(42);
+        for (var i = 0; i < size; i++) {
+            final var host = hosts[random.nextInt(hosts.length)];
+            final var base = "https://" + host + '/' + path(random, 1 + random.nextInt(3));
+            pairs.add(new String[]{href(random, host), base});
+        }
+        return new HrefCorpus(pairs);
+    }
+
+    private static String href(Random random, String host) {
+        switch (random.nextInt(10)) {
+            case 0: return "https://" + host + '/' + path(random, 2) + '?' + tracking[random.nextInt(tracking.length)] + "&id=" + random.nextInt(1000);
+            case 1: return "//" + host + '/' + path(random, 3);
+            case 2: return '/' + path(random, 2) + "#section-" + random.nextInt(10);
+            case 3: return "../" + path(random, 1);
+            case 4: return "./" + path(random, 2) + "?page=" + random.nextInt(50);
+            case 5: return "#top";
+            case 6: return "mailto:contact@" + host;
+            case 7: return "javascript:void(0)";
+            case 8: return "HTTPS://" + host.toUpperCase() + ":443/" + path(random, 2);
+            default: return path(random, 2);
+        }
+    }
+
+    private static String path(Random random, int depth) {
+        final var path = new StringBuilder();
+        for (var i = 0; i < depth; i++) {
+            if (i > 0) path.append('/');
+            path.append(segments[random.nextInt(segments.length)]);
+        }
+        return path.toString();
+    }
+}
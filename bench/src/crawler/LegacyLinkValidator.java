@@ -0,0 +1,39 @@
+package crawler;
+
+import java.util.regex.Pattern;
+
+/**
+ * The regex based validateLink used by WebCrawler before UrlCanonicalizer, kept
+ * so the two can be benchmarked side by side.
+ */
+class LegacyLinkValidator {
+
+    // Regex matching relative links without '/'
+    private static final Pattern domain = Pattern.compile("(?Ui)^[^/]+"); //                     : example.com
+    // Regex matching links missing a protocol
+    private static final Pattern no_scheme = Pattern.compile("(?Ui)^//.+"); //                     : //example.com/page.html
+    // Regex matching relative links starting with '/'
+    private static final Pattern slash_subdirectory = Pattern.compile("(?Ui)^/[^/]+.*"); //        : /page.html
+    // Regex matching relative links not starting with a '/'
+    private static final Pattern noslash_subdirectory = Pattern.compile("(?Ui)^[^/]+.+/[^/]*"); // : page.html
+
+    static String validateLink(String link, String url) {
+        final var scheme = url.contains("://") ? url.substring(0, url.indexOf("://")) : "https";
+        final var domain_matcher = domain.matcher(link);
+        final var no_scheme_matcher = no_scheme.matcher(link);
+        final var slash_subdirectory_matcher = slash_subdirectory.matcher(link);
+        final var noslash_subdirectory__matcher = noslash_subdirectory.matcher(link);
+        if (domain_matcher.matches() || (noslash_subdirectory__matcher.matches() && !link.contains("://"))) {
+            var index = url.lastIndexOf('/');
+            if (index > 0 && url.charAt(index - 1) != '/') return url.substring(0, index + 1) + link;
+            else return url + '/' + link;
+        }
+        else if (no_scheme_matcher.matches()) return scheme + ':' + link;
+        else if (slash_subdirectory_matcher.matches()) {
+            final var index = url.lastIndexOf('/');
+            if (index > 0 && url.charAt(index - 1) != '/') return url.substring(0, index) + link;
+            else return url + link;
+        }
+        return link;
+    }
+}
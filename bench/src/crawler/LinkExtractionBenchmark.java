@@ -0,0 +1,69 @@
+package crawler;
+
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the DOM and STREAMING LinkExtractor modes, including the Jsoup parse the
+ * DOM mode needs, over pages built from the hrefs of an HrefCorpus. Pages carry the
+ * markup around their links that real pages do, so the streaming scan has to skip
+ * over it rather than finding an anchor at every tag.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkExtractionBenchmark {
+
+    @Param({"DOM", "STREAMING"})
+    public String mode;
+
+    @Param({"100"})
+    public int links;
+
+    @Param({""})
+    public String corpus;
+
+    private static final int page_count = 64;
+
+    private LinkExtractor extractor;
+    private String[] pages;
+    private String[] urls;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        extractor = new LinkExtractor(LinkExtractor.Mode.valueOf(mode), true);
+        final var hrefs = HrefCorpus.load(corpus, page_count * links);
+        pages = new String[page_count];
+        urls = new String[page_count];
+        for (var page = 0; page < page_count; page++) {
+            final var html = new StringBuilder(links * 160)
+                    .append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Page ").append(page).append(" &amp; more</title>")
+                    .append("<script>var links = '<a href=\"/not-a-link\">';</script><style>a { color: red; }</style></head><body>")
+                    .append("<nav class=\"menu\"><ul>");
+            for (var link = 0; link < links; link++) {
+                final var i = (page * links + link) % hrefs.links.length;
+                if (link % 10 == 0) html.append("</ul><div class=\"section\"><p>Some text about the links below, <b>with</b> markup.</p><ul>");
+                html.append("<li class=\"item\"><a class=\"link\" href=\"").append(hrefs.links[i].replace("&", "&amp;").replace("\"", "&quot;"))
+                        .append("\" title=\"Link ").append(link).append("\">Link ").append(link).append("</a></li>");
+                if (link % 10 == 9) html.append("</ul></div><ul>");
+            }
+            pages[page] = html.append("</ul></nav></body></html>").toString();
+            urls[page] = hrefs.bases[(page * links) % hrefs.bases.length];
+        }
+    }
+
+    @Benchmark
+    public LinkExtractor.Page extract() {
+        final var i = next++ & (page_count - 1);
+        return extractor.mode() == LinkExtractor.Mode.STREAMING
+                ? extractor.extract(urls[i], pages[i])
+                : extractor.extract(urls[i], Jsoup.parse(pages[i], urls[i]));
+    }
+}
@@ -0,0 +1,46 @@
+package crawler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the regex based validateLink against UrlCanonicalizer over a corpus of
+ * hrefs. Pass -p corpus=/path/to/hrefs.tsv to benchmark a corpus of real hrefs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkValidationBenchmark {
+
+    @Param({""})
+    public String corpus;
+
+    @Param({"100000"})
+    public int size;
+
+    private HrefCorpus hrefs;
+    private int next;
+    private final UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+
+    @Setup
+    public void setup() throws IOException {
+        hrefs = HrefCorpus.load(corpus, size);
+    }
+
+    @Benchmark
+    public String legacyValidateLink() {
+        final var i = next++ % hrefs.links.length;
+        return LegacyLinkValidator.validateLink(hrefs.links[i], hrefs.bases[i]);
+    }
+
+    @Benchmark
+    public String canonicalize() {
+        final var i = next++ % hrefs.links.length;
+        return canonicalizer.canonicalize(hrefs.links[i], hrefs.bases[i]);
+    }
+}
@@ -0,0 +1,105 @@
+package crawler;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end load test of a full crawl. A StubSite serving a complete tree of the
+ * given fan-out and depth is started on loopback, crawled once to completion, and
+ * the crawl is reported as pages per second, fetch latency percentiles, peak heap
+ * and the table of every stage. Run with
+ * `gradle :bench:loadTest --args='--fan-out=10 --depth=4 --latency=50 --workers=50'`.
+ * <p>
+ * The site is described by --fan-out (default 10), --depth (default 3), --latency
+ * in milliseconds (default 20), --back-links (default 2) and --broken-links (default
+ * 0) with a port out of range, every other argument is a CrawlConfig key. Politeness
+ * is off unless given, since the site is a single host. A crawl that has not finished
+ * within --time-limit seconds (default 600) fails the test.
+ */
+class LoadTest {
+
+    /**
+     * Runs a single load test.
+     *
+     * @param args site and crawl settings of the form --key=value
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var fan_out = 10;
+        var depth = 3;
+        var latency = 20L;
+        var back_links = 2;
+        var broken_links = 0;
+        var time_limit = 600L;
+        final var crawl_args = new ArrayList<String>();
+        crawl_args.add("--politeness=false");
+        for (var arg : args) {
+            final var value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--fan-out=")) fan_out = Integer.parseInt(value);
+            else if (arg.startsWith("--depth=")) depth = Integer.parseInt(value);
+            else if (arg.startsWith("--latency=")) latency = Long.parseLong(value);
+            else if (arg.startsWith("--back-links=")) back_links = Integer.parseInt(value);
+            else if (arg.startsWith("--broken-links=")) broken_links = Integer.parseInt(value);
+            else if (arg.startsWith("--time-limit=")) time_limit = Long.parseLong(value);
+            else crawl_args.add(arg);
+        }
+        if (fan_out < 1 || depth < 0 || latency < 0 || back_links < 0 || broken_links < 0 || time_limit < 1) throw new IllegalArgumentException("site invalid");
+        final var pages = StubSite.treeSize(fan_out, depth);
+
+        try (var site = new StubSite(pages, fan_out, back_links, broken_links, latency, 1)) {
+            crawl_args.add("--url=" + site.url(0));
+            final var config = CrawlConfig.parse(crawl_args.toArray(new String[0]));
+            System.out.printf("Site: %d pages, fan-out %d, depth %d, latency %d ms, %d back links, %d broken links%n",
+                    pages, fan_out, depth, latency, back_links, broken_links);
+            System.out.printf("Crawl: %s engine, %d workers%n", config.engine.name().toLowerCase(Locale.ROOT), config.worker_count);
+
+            final var done = new CountDownLatch(1);
+            final var crawler = new Crawler(config, new Crawler.Listener() {
+                @Override
+                public void finished() {
+                    done.countDown();
+                }
+            });
+            System.gc();
+            resetPeakHeap();
+            final var started = System.nanoTime();
+            crawler.start();
+            if (!done.await(time_limit, TimeUnit.SECONDS)) {
+                System.out.print(crawler.snapshot().toText());
+                System.err.println("Crawl did not finish within " + time_limit + " s");
+                System.exit(1);
+            }
+            final var seconds = (System.nanoTime() - started) / 1e9;
+            final var peak_heap = peakHeap();
+
+            final var snapshot = crawler.snapshot();
+            final var fetch = snapshot.stages.get(CrawlMetrics.Stage.FETCH);
+            System.out.printf(Locale.ROOT, "Pages: %d of %d in %.2f s, %.1f pages/s%n",
+                    snapshot.parsed_pages, pages, seconds, snapshot.parsed_pages / seconds);
+            System.out.printf(Locale.ROOT, "Fetch latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    fetch.p50 / 1e6, fetch.p99 / 1e6, fetch.max / 1e6);
+            System.out.printf(Locale.ROOT, "Peak heap: %.1f MB%n", peak_heap / (1024.0 * 1024.0));
+            System.out.print(snapshot.toText());
+            if (snapshot.parsed_pages != pages) System.exit(1);
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    // The sum of the peaks of the heap pools, an upper bound as the pools may peak at different times
+    private static long peakHeap() {
+        var peak = 0L;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,63 @@
+package crawler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the memory and claim throughput of the Frontier modes. Setup claims
+ * urls distinct urls and prints the heap they retain per url, then the benchmark
+ * claims a rotating set of already claimed urls, the path most extracted links
+ * take since a crawl sees each page linked many times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The parallel collector reports used heap exactly after System.gc, G1 undercounts large arrays
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-XX:+UseParallelGC"})
+public class SeenSetBenchmark {
+
+    @Param({"STRINGS", "FINGERPRINTS", "BLOOM"})
+    public String mode;
+
+    @Param({"1000000"})
+    public int urls;
+
+    private static final int probe_count = 1 << 16;
+
+    private Frontier frontier;
+    private String[] probes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        final var random = new Random(42);
+        probes = new String[probe_count];
+        for (var i = 0; i < probe_count; i++) probes[i] = url(random.nextInt(urls));
+        final var before = usedHeap();
+        frontier = new Frontier(Frontier.Mode.valueOf(mode), urls);
+        // Urls are built as they are claimed so only what the Frontier retains stays reachable
+        for (var i = 0; i < urls; i++) frontier.claim(url(i));
+        final var retained = usedHeap() - before;
+        System.out.printf("%n%s: %d urls, %.1f bytes per url%n", mode, frontier.size(), (double)retained / urls);
+    }
+
+    @Benchmark
+    public boolean claim() {
+        return frontier.claim(probes[next++ & (probe_count - 1)]);
+    }
+
+    // A url shaped like a canonicalized link of a large site
+    private static String url(int i) {
+        return "https://www.example" + (i % 1000) + ".com/articles/" + (i / 1000) + "/page-" + i + ".html";
+    }
+
+    private static long usedHeap() {
+        final var runtime = Runtime.getRuntime();
+        for (var i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
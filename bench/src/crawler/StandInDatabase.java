@@ -0,0 +1,292 @@
+package crawler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An in-process stand-in for the MySQL pages database, reached through a JDBC url
+ * of the form jdbc:standin:<name>. It understands exactly the statements the
+ * PageUploader sends: INSERT IGNORE and the re-crawl upsert of pages, ROW_COUNT(),
+ * max_allowed_packet, the validator columns and the paged select of the pages of
+ * a previous crawl.
+ * <p>
+ * Batches are answered the way Connector/J answers them with
+ * rewriteBatchedStatements: every row reports SUCCESS_NO_INFO, and a batch whose
+ * rows outgrow max_allowed_packet is split into several inserts of which ROW_COUNT()
+ * only reports the last. Each split is counted, so a test can check that none
+ * happened.
+ */
+class StandInDatabase implements Driver {
+
+    private static final String prefix = "jdbc:standin:";
+    private static final Map<String, StandInDatabase> databases = new ConcurrentHashMap<>();
+
+    final Map<String, Object[]> pages = new ConcurrentHashMap<>(); // Rows by URL, Title, URL, Depth, ETag, LastModified, Hash and Length
+    final Set<String> columns = ConcurrentHashMap.newKeySet(); // Columns of the pages table
+    final AtomicInteger splits = new AtomicInteger(); // Batches split into several inserts
+    final AtomicInteger failing = new AtomicInteger(); // Batches still to fail with an SQLException
+    final AtomicInteger alters = new AtomicInteger(); // Columns added to the pages table
+    final AtomicInteger selects = new AtomicInteger(); // Paged selects of pages
+    private final long max_packet; // Bytes of one insert at most
+    private volatile long row_count = 0; // ROW_COUNT() of the last insert
+
+    private StandInDatabase(long max_packet) {
+        this.max_packet = max_packet;
+        columns.addAll(List.of("Title", "URL"));
+    }
+
+    /**
+     * Creates a database and registers the driver once.
+     *
+     * @param name name of the database in its url
+     * @param max_packet max_allowed_packet of the database
+     * @return the database, reached through url(name)
+     */
+    static StandInDatabase create(String name, long max_packet) throws SQLException {
+        final var database = new StandInDatabase(max_packet);
+        if (databases.isEmpty()) DriverManager.registerDriver(database);
+        databases.put(name, database);
+        return database;
+    }
+
+    /**
+     * @param name name of a database
+     * @return the JDBC url of the database
+     */
+    static String url(String name) {
+        return prefix + name;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) return null;
+        final var database = databases.get(url.substring(prefix.length()));
+        if (database == null) throw new SQLException("unknown database " + url);
+        return database.connection();
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url.startsWith(prefix);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getLogger("crawler");
+    }
+
+    // A connection handing out statements on this database
+    private Connection connection() {
+        final var closed = new boolean[1];
+        return proxy(Connection.class, (method, args) -> {
+            switch (method) {
+                case "prepareStatement": return prepared((String)args[0]);
+                case "createStatement": return statement();
+                case "getMetaData": return proxy(DatabaseMetaData.class, (meta, meta_args) -> {
+                    if (!meta.equals("getColumns")) throw new SQLFeatureNotSupportedException(meta);
+                    final var rows = new ArrayList<Object[]>();
+                    for (var column : columns) rows.add(new Object[]{column});
+                    return results(new String[]{"COLUMN_NAME"}, rows);
+                });
+                case "getCatalog": return "standin";
+                case "isValid": return !closed[0];
+                case "close": closed[0] = true; return null;
+                case "isClosed": return closed[0];
+                default: throw new SQLFeatureNotSupportedException(method);
+            }
+        });
+    }
+
+    // A statement answering the queries and table changes of the PageUploader
+    private Statement statement() {
+        return proxy(Statement.class, (method, args) -> {
+            switch (method) {
+                case "executeQuery": return query(((String)args[0]).trim().toLowerCase(Locale.ROOT));
+                case "executeUpdate": {
+                    final var sql = ((String)args[0]).trim();
+                    final var alter = "alter table pages add column ";
+                    if (!sql.toLowerCase(Locale.ROOT).startsWith(alter)) throw new SQLException("unsupported: " + sql);
+                    columns.add(sql.substring(alter.length()).split(" ")[0]);
+                    alters.incrementAndGet();
+                    return 0;
+                }
+                case "close": return null;
+                default: throw new SQLFeatureNotSupportedException(method);
+            }
+        });
+    }
+
+    private ResultSet query(String sql) throws SQLException {
+        if (sql.equals("select row_count()")) return results(new String[]{"row_count()"}, List.<Object[]>of(new Object[]{row_count}));
+        if (sql.equals("select @@max_allowed_packet")) return results(new String[]{"@@max_allowed_packet"}, List.<Object[]>of(new Object[]{max_packet}));
+        throw new SQLException("unsupported: " + sql);
+    }
+
+    // A prepared select of the pages with a depth after a depth and url, in depth and url order, up to a limit
+    private PreparedStatement paged(String sql) throws SQLException {
+        final var expected = "where depth is not null and (depth > ? or depth = ? and url > ?) order by depth, url limit ?";
+        if (!sql.contains(" from pages ") || !sql.endsWith(expected)) throw new SQLException("unsupported: " + sql);
+        final var names = sql.substring(7, sql.indexOf(" from pages")).split("\\s*,\\s*");
+        final var all = List.of("title", "url", "depth", "etag", "lastmodified", "hash", "length");
+        final var parameters = new Object[4];
+        return proxy(PreparedStatement.class, (method, args) -> {
+            switch (method) {
+                case "setString": case "setInt": parameters[(Integer)args[0] - 1] = args[1]; return null;
+                case "executeQuery": {
+                    selects.incrementAndGet();
+                    final var depth = (Integer)parameters[0];
+                    final var url = (String)parameters[2];
+                    final var after = new ArrayList<Object[]>();
+                    for (var page : pages.values()) {
+                        final var page_depth = (Integer)page[2];
+                        if (page_depth == null) continue;
+                        if (page_depth > depth || page_depth.equals(depth) && ((String)page[1]).compareTo(url) > 0) after.add(page);
+                    }
+                    after.sort(Comparator.comparing((Object[] page) -> (Integer)page[2]).thenComparing(page -> (String)page[1]));
+                    final var rows = new ArrayList<Object[]>();
+                    for (var page : after.subList(0, Math.min(after.size(), (Integer)parameters[3]))) {
+                        final var row = new Object[names.length];
+                        for (var i = 0; i < names.length; i++) row[i] = page[all.indexOf(names[i])];
+                        rows.add(row);
+                    }
+                    return results(names, rows);
+                }
+                case "close": return null;
+                default: throw new SQLFeatureNotSupportedException(method);
+            }
+        });
+    }
+
+    // A prepared insert or upsert of pages, or a paged select
+    private PreparedStatement prepared(String sql) throws SQLException {
+        final var lower = sql.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("select ")) return paged(lower);
+        final var upsert = lower.contains("on duplicate key update");
+        if (!lower.startsWith("insert ignore into pages") && !(upsert && lower.startsWith("insert into pages"))) throw new SQLException("unsupported: " + sql);
+        final var parameters = new Object[upsert ? 7 : 2];
+        final var batch = new ArrayList<Object[]>();
+        return proxy(PreparedStatement.class, (method, args) -> {
+            switch (method) {
+                case "setString": case "setInt": case "setLong": parameters[(Integer)args[0] - 1] = args[1]; return null;
+                case "setNull": parameters[(Integer)args[0] - 1] = null; return null;
+                case "addBatch": batch.add(parameters.clone()); return null;
+                case "clearBatch": batch.clear(); return null;
+                case "executeBatch": {
+                    final var rows = new ArrayList<>(batch);
+                    batch.clear();
+                    return execute(sql.length(), rows, upsert);
+                }
+                case "close": return null;
+                default: throw new SQLFeatureNotSupportedException(method);
+            }
+        });
+    }
+
+    // Runs a rewritten batch, splitting it where Connector/J would
+    private synchronized int[] execute(int statement_bytes, List<Object[]> rows, boolean upsert) throws SQLException {
+        if (failing.get() > 0 && failing.getAndDecrement() > 0) throw new SQLException("stand-in failure");
+        var bytes = (long)statement_bytes;
+        var changed = 0L;
+        var inserted = 0; // Rows of the current insert
+        for (var row : rows) {
+            final var size = size(row);
+            if (inserted > 0 && bytes + size > max_packet) {
+                // The rows so far went out as one insert, the rest start the next
+                splits.incrementAndGet();
+                bytes = statement_bytes;
+                changed = 0;
+                inserted = 0;
+            }
+            bytes += size;
+            inserted++;
+            final var url = (String)row[1];
+            final var existing = pages.get(url);
+            if (existing == null) {
+                final var page = new Object[7];
+                System.arraycopy(row, 0, page, 0, row.length);
+                pages.put(url, page);
+                changed += 1;
+            }
+            else if (upsert) {
+                System.arraycopy(row, 0, existing, 0, row.length);
+                changed += 2;
+            }
+        }
+        row_count = changed;
+        final var counts = new int[rows.size()];
+        Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+        return counts;
+    }
+
+    // Bytes of a row in a rewritten insert, as Connector/J counts them
+    private static long size(Object[] row) {
+        var size = 4L;
+        for (var value : row) size += value instanceof String ? 2 + ((String)value).getBytes(StandardCharsets.UTF_8).length : 20;
+        return size;
+    }
+
+    // Rows of a query
+    private static ResultSet results(String[] labels, List<Object[]> rows) {
+        final var at = new int[]{-1};
+        final var was_null = new boolean[1];
+        return proxy(ResultSet.class, (method, args) -> {
+            switch (method) {
+                case "next": return ++at[0] < rows.size();
+                case "wasNull": return was_null[0];
+                case "close": return null;
+                case "getString": case "getInt": case "getLong": {
+                    final var index = args[0] instanceof String ? List.of(labels).indexOf(args[0]) : (Integer)args[0] - 1;
+                    final var value = rows.get(at[0])[index];
+                    was_null[0] = value == null;
+                    if (method.equals("getString")) return value == null ? null : value.toString();
+                    final var number = value == null ? 0L : ((Number)value).longValue();
+                    return method.equals("getInt") ? (Object)(int)number : (Object)number;
+                }
+                default: throw new SQLFeatureNotSupportedException(method);
+            }
+        });
+    }
+
+    // Answers a method by name and arguments
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        final InvocationHandler invocation = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "toString": return "stand-in " + type.getSimpleName();
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return handler.handle(method.getName(), args);
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(StandInDatabase.class.getClassLoader(), new Class<?>[]{type}, invocation));
+    }
+}
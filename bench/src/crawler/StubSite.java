@@ -0,0 +1,141 @@
+package crawler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local http server serving a deterministic link graph for benchmarks. Page i
+ * links to pages i * fan_out + 1 through i * fan_out + fan_out, so the site is a
+ * tree of the given number of pages, and every response is delayed by latency
+ * milliseconds to simulate a remote host. Each page may also link back to pages
+ * before it, as real sites link to their home and section pages, so that most
+ * links found by a crawl are already claimed. The pages may be spread over several
+ * loopback hosts, 127.0.0.1 and up, each linked to by its absolute url. Broken
+ * links, with a port no connection can be made to, test that a crawl finishes
+ * whatever its links are.
+ */
+class StubSite implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private final int pages;
+    private final int fan_out;
+    private final int back_links; // Links of every page to earlier pages
+    private final int broken_links; // Links of every page to a port out of range
+    private final long latency;
+    private final int hosts; // Loopback hosts the pages are spread over
+
+    // Starts a StubSite without back links on an ephemeral loopback port
+    StubSite(int pages, int fan_out, long latency) throws IOException {
+        this(pages, fan_out, 0, latency);
+    }
+
+    // Starts a StubSite on an ephemeral port of 127.0.0.1
+    StubSite(int pages, int fan_out, int back_links, long latency) throws IOException {
+        this(pages, fan_out, back_links, latency, 1);
+    }
+
+    // Starts a StubSite without broken links on an ephemeral port
+    StubSite(int pages, int fan_out, int back_links, long latency, int hosts) throws IOException {
+        this(pages, fan_out, back_links, 0, latency, hosts);
+    }
+
+    // Starts a StubSite on an ephemeral port, of every loopback address if the pages are spread over several hosts
+    StubSite(int pages, int fan_out, int back_links, int broken_links, long latency, int hosts) throws IOException {
+        if (hosts < 1 || hosts > 254) throw new IllegalArgumentException("hosts invalid");
+        this.pages = pages;
+        this.fan_out = fan_out;
+        this.back_links = back_links;
+        this.broken_links = broken_links;
+        this.latency = latency;
+        this.hosts = hosts;
+        server = HttpServer.create(hosts == 1 ? new InetSocketAddress("127.0.0.1", 0) : new InetSocketAddress(0), 4096);
+        server.createContext("/", this::handle);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * @param fan_out links of every page to its children
+     * @param depth depth of the deepest pages
+     * @return the number of pages of a complete tree, 1 + fan_out + ... + fan_out^depth
+     */
+    static int treeSize(int fan_out, int depth) {
+        var size = 1L;
+        var level = 1L;
+        for (var i = 0; i < depth; i++) {
+            level *= fan_out;
+            size += level;
+            if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("tree too large");
+        }
+        return (int)size;
+    }
+
+    /**
+     * @param page index of a page
+     * @return the url of the page
+     */
+    String url(int page) {
+        return "http://127.0.0." + (1 + page % hosts) + ":" + server.getAddress().getPort() + "/p/" + page;
+    }
+
+    // The href of a link to a page, relative on a single host
+    private String href(int page) {
+        return hosts == 1 ? "/p/" + page : url(page);
+    }
+
+    // Serves /p/<i> with links to its children, anything else is a 404
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final var path = exchange.getRequestURI().getPath();
+            final int page;
+            try {
+                page = path.startsWith("/p/") ? Integer.parseInt(path.substring(3)) : -1;
+            }
+            catch (NumberFormatException invalid) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (page < 0 || page >= pages) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (latency > 0) Thread.sleep(latency);
+            final var html = new StringBuilder(64 + (fan_out + back_links + broken_links) * 32)
+                    .append("<html><head><title>Page ").append(page).append("</title></head><body>");
+            for (var child = page * fan_out + 1; child <= page * fan_out + fan_out && child < pages; child++) {
+                html.append("<a href=\"").append(href(child)).append("\">").append(child).append("</a>");
+            }
+            for (var link = 0; link < back_links; link++) {
+                // Scattered but fixed per page, so every crawl of the site is the same
+                final var earlier = (int)((page * 31L + link * 7919L) % Math.max(1, page));
+                html.append("<a href=\"").append(href(earlier)).append("\">").append(earlier).append("</a>");
+            }
+            for (var link = 0; link < broken_links; link++) {
+                html.append("<a href=\"http://127.0.0.1:99999/p/").append(page).append('/').append(link).append("\">broken</a>");
+            }
+            final var body = html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+}
@@ -0,0 +1,142 @@
+package crawler;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the PageUploader and the PageSink against a StandInDatabase whose
+ * max_allowed_packet is small enough that a batch of default size would be split
+ * by a rewrite. Every upload must write every page, report exactly how many were
+ * added and how many were already there, and never send a batch that gets split.
+ * A sink must outlast failed writes, and report the pages of a database that never
+ * comes back as lost.
+ * Run with `gradle :bench:uploadTest`, exits with 1 on the first failed check.
+ */
+class UploadTest {
+
+    private static final int page_count = 10_000;
+
+    public static void main(String[] args) throws SQLException, InterruptedException, ExecutionException {
+        final var database = StandInDatabase.create("upload", 64 * 1024);
+        final var pages = new HashMap<String, String>();
+        for (var i = 0; i < page_count; i++) pages.put("http://example.com/p/" + i, "Page " + i + " ".repeat(i % 200));
+
+        // A first upload adds every page, a second finds every page there already
+        final var metrics = new CrawlMetrics();
+        final var uploader = uploader("upload", metrics, false);
+        check("first upload", upload(uploader, pages, null), page_count, 0);
+        check("rows", database.pages.size(), page_count);
+        check("second upload", upload(uploader, pages, null), 0, page_count);
+
+        // A re-crawl refuses a table without the validator columns until it is migrated, then updates the pages
+        // it has seen and adds the rest
+        final var recrawl = uploader("upload", metrics, true);
+        check("unmigrated", failsChecking(recrawl), true);
+        check("columns unchanged", database.alters.get(), 0);
+        recrawl.migrate();
+        check("columns added", database.alters.get(), 5);
+        recrawl.checkColumns();
+        recrawl.migrate();
+        check("columns added once", database.alters.get(), 5);
+        check("pages without depth", loaded(recrawl, Integer.MAX_VALUE).size(), 0);
+        final var records = new HashMap<String, PageRecord>();
+        final var more = new HashMap<>(pages);
+        for (var i = 0; i < page_count + 500; i++) {
+            final var url = "http://example.com/p/" + i;
+            more.put(url, "Page " + i);
+            records.put(url, new PageRecord(url, "Page " + i, i % 7, "\"" + i + "\"", null, (long)i, 100L + i));
+        }
+        check("re-crawl upload", upload(recrawl, more, records), 500, page_count);
+        check("depth written", database.pages.get("http://example.com/p/13")[2], 13 % 7);
+
+        // The previous pages are read a batch at a time, shallowest first and only to the max depth
+        final var selects = database.selects.get();
+        final var loaded = loaded(recrawl, Integer.MAX_VALUE);
+        check("pages loaded", loaded.size(), page_count + 500);
+        check("pages selects", database.selects.get() - selects, (page_count + 500) / PageUploader.DEFAULT_BATCH_SIZE + 1);
+        for (var i = 1; i < loaded.size(); i++) {
+            if (loaded.get(i - 1).depth > loaded.get(i).depth) fail("pages loaded out of depth order at " + loaded.get(i).url);
+        }
+        check("pages to depth 2", loaded(recrawl, 2).size(), (int)loaded.stream().filter(page -> page.depth <= 2).count());
+
+        // The sink writes every page, keeping a failed batch for the next flush
+        final var streamed = StandInDatabase.create("stream", 64 * 1024);
+        final var totals = new AtomicReference<int[]>();
+        final var sink = new PageSink(uploader("stream", metrics, false), 10_000, 1000, 50L,
+                (processed, total, added, redundant) -> totals.set(new int[]{added, redundant}), metrics);
+        sink.start();
+        streamed.failing.set(2);
+        for (var i = 0; i < page_count; i++) sink.offer(new PageRecord("http://example.com/p/" + i % 9000, "Page " + i));
+        sink.close();
+        check("streamed rows", streamed.pages.size(), 9000);
+        check("streamed totals", totals.get(), 9000, 1000);
+
+        // Pages a failing database never takes are reported as lost rather than written
+        final var down = StandInDatabase.create("down", 64 * 1024);
+        down.failing.set(Integer.MAX_VALUE);
+        final var lost_metrics = new CrawlMetrics();
+        final var progress = new AtomicReference<int[]>();
+        final var failing = new PageSink(uploader("down", lost_metrics, false), 1000, 100, 10L,
+                (processed, total, added, redundant) -> progress.set(new int[]{processed, total}), lost_metrics);
+        failing.start();
+        for (var i = 0; i < 500; i++) failing.offer(new PageRecord("http://example.com/p/" + i, "Page " + i));
+        failing.close();
+        check("closed offer", failing.offer(new PageRecord("http://example.com/late", "Late")), false);
+        check("lost pages", progress.get(), 0, 500);
+        check("lost failures", lost_metrics.snapshot(0, 0, 0).failures.get(CrawlMetrics.Failure.DATABASE) >= 501, true);
+        check("down rows", down.pages.size(), 0);
+
+        check("split batches", database.splits.get() + streamed.splits.get(), 0);
+        System.out.println("Upload test passed");
+    }
+
+    private static PageUploader uploader(String name, CrawlMetrics metrics, boolean recrawl) {
+        return new PageUploader(StandInDatabase.url(name), "user", "password", PageUploader.DEFAULT_BATCH_SIZE, metrics, recrawl);
+    }
+
+    // Returns whether the columns of a re-crawl are found missing
+    private static boolean failsChecking(PageUploader uploader) {
+        try {
+            uploader.checkColumns();
+            return false;
+        }
+        catch (SQLException missing) {
+            return true;
+        }
+    }
+
+    // Reads the pages of the previous crawl to a max depth
+    private static List<PageRecord> loaded(PageUploader uploader, int max_depth) throws SQLException {
+        final var pages = new ArrayList<PageRecord>();
+        uploader.load(max_depth, pages::add);
+        return pages;
+    }
+
+    // Runs an upload and returns its final added and redundant totals
+    private static int[] upload(PageUploader uploader, Map<String, String> pages, Map<String, PageRecord> records)
+            throws InterruptedException, ExecutionException {
+        final var totals = new AtomicReference<int[]>();
+        uploader.upload(pages, records, (processed, total, added, redundant) -> totals.set(new int[]{added, redundant})).get();
+        return totals.get();
+    }
+
+    private static void check(String name, int[] totals, int added, int redundant) {
+        if (totals[0] != added || totals[1] != redundant) {
+            fail(name + ": added " + totals[0] + ", redundant " + totals[1] + ", expected " + added + " and " + redundant);
+        }
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        if (!expected.equals(actual)) fail(name + ": " + actual + ", expected " + expected);
+    }
+
+    private static void fail(String message) {
+        System.err.println("Upload test failed, " + message);
+        System.exit(1);
+    }
+}
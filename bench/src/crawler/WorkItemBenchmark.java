@@ -0,0 +1,173 @@
+package crawler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares how the links of a crawled page become queued work at depths 3 to 6.
+ * Each invocation crawls a complete in-memory site to the max depth on one thread,
+ * through the real LinkExtractor, UrlCanonicalizer, Frontier and CrawlQueue, so
+ * only fetching is left out. Every page links to fan_out children and back_links
+ * earlier pages, including the pages at the max depth, as on a real site.
+ * <p>
+ * PER_LINK is the path the Crawler took before: pages at the max depth are read
+ * and their links validated only for each to be dropped by the depth check, and
+ * every claimed link is queued as its own Task with a boxed depth, with its own
+ * count of outstanding urls and its own offer to the queue. BATCHED is the current
+ * path: pages at the max depth are read without links, and the claimed links of a
+ * page are counted once and queued under one lock. Run with `-prof gc` to compare
+ * the allocation per crawl.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkItemBenchmark {
+
+    @Param({"PER_LINK", "BATCHED"})
+    public String path;
+
+    @Param({"3", "4", "5", "6"})
+    public int depth;
+
+    @Param({"5"})
+    public int fan_out;
+
+    @Param({"2"})
+    public int back_links;
+
+    private static final String host = "http://example.com";
+
+    // Work item of the PER_LINK path, null depth meant unlimited
+    private static final class BoxedTask implements Runnable {
+        final String url;
+        final Integer depth;
+
+        BoxedTask(String url, Integer depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {}
+    }
+
+    // Work item of the BATCHED path
+    private static final class Task implements Runnable {
+        final String url;
+        final int depth;
+
+        Task(String url, int depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {}
+    }
+
+    private final LinkExtractor extractor = new LinkExtractor(LinkExtractor.Mode.STREAMING, true);
+    private final UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private String[] pages;
+    private boolean batched;
+    private Integer boxed_max_depth; // max depth as the PER_LINK path read it
+    private Frontier frontier;
+    private CrawlQueue queue;
+
+    @Setup
+    public void setup() {
+        batched = path.equals("BATCHED");
+        boxed_max_depth = depth;
+        pages = new String[StubSite.treeSize(fan_out, depth)];
+        for (var page = 0; page < pages.length; page++) {
+            final var html = new StringBuilder(64 + (fan_out + back_links) * 32)
+                    .append("<html><head><title>Page ").append(page).append("</title></head><body>");
+            for (var child = page * fan_out + 1; child <= page * fan_out + fan_out; child++) {
+                html.append("<a href=\"/p/").append(child).append("\">").append(child).append("</a>");
+            }
+            for (var link = 0; link < back_links; link++) {
+                final var earlier = (int)((page * 31L + link * 7919L) % Math.max(1, page));
+                html.append("<a href=\"/p/").append(earlier).append("\">").append(earlier).append("</a>");
+            }
+            pages[page] = html.append("</body></html>").toString();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        frontier = new Frontier();
+        outstanding.set(0);
+        final Comparator<Runnable> shallowest = batched
+                ? Comparator.comparingInt(task -> ((Task)task).depth)
+                : Comparator.comparingInt(task -> ((BoxedTask)task).depth);
+        // Every page fits in memory, so the spill file stays empty
+        queue = new CrawlQueue(pages.length, shallowest, task -> "", line -> null, Path.of(System.getProperty("java.io.tmpdir")), lost -> {});
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * @return the number of pages crawled, every page of the site
+     */
+    @Benchmark
+    public int crawl() {
+        final var start = host + "/p/0";
+        frontier.claim(start);
+        outstanding.incrementAndGet();
+        if (batched) queue.offer(new Task(start, 0));
+        else queue.offer(new BoxedTask(start, 0));
+        var crawled = 0;
+        for (Runnable next; (next = queue.poll()) != null; crawled++) {
+            if (batched) batched((Task)next);
+            else perLink((BoxedTask)next);
+            outstanding.decrementAndGet();
+        }
+        if (crawled != pages.length || outstanding.get() != 0) throw new IllegalStateException("crawled " + crawled + " pages");
+        return crawled;
+    }
+
+    private void perLink(BoxedTask task) {
+        final var page = extractor.extract(task.url, page(task.url));
+        for (var link : page.links) {
+            final var valid = canonicalizer.canonicalize(link, page.base);
+            if (valid == null) continue;
+            if ((boxed_max_depth == null || task.depth < boxed_max_depth) && frontier.claim(valid)) {
+                outstanding.incrementAndGet();
+                queue.offer(new BoxedTask(valid, task.depth + 1));
+            }
+        }
+    }
+
+    private void batched(Task task) {
+        final var page = extractor.extract(task.url, page(task.url), task.depth < depth);
+        if (task.depth >= depth || page.links.isEmpty()) return;
+        final var claimed = new ArrayList<String>(page.links.size());
+        for (var link : page.links) {
+            final var valid = canonicalizer.canonicalize(link, page.base);
+            if (valid != null && frontier.claim(valid)) claimed.add(valid);
+        }
+        if (claimed.isEmpty()) return;
+        outstanding.addAndGet(claimed.size());
+        final List<Task> tasks = new ArrayList<>(claimed.size());
+        for (var url : claimed) tasks.add(new Task(url, task.depth + 1));
+        queue.offerAll(tasks);
+    }
+
+    // The html of the page at a url of the site
+    private String page(String url) {
+        return pages[Integer.parseInt(url, url.lastIndexOf('/') + 1, url.length(), 10)];
+    }
+}
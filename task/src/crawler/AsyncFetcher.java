@@ -0,0 +1,303 @@
+package crawler;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fetches pages with a non-blocking HttpClient so that in-flight requests do not
+ * each hold a thread. Up to max_in_flight requests may be outstanding at once,
+ * counting a request until its body has been parsed, so no more than max_in_flight
+ * bodies are ever held between the network and the fixed parse pool. Requests
+ * beyond that wait for a permit as urls rather than blocking the thread that
+ * submits them, which is usually a parser. The time until the response
+ * headers arrive is recorded as CONNECT, as HttpClient does not report resolving
+ * and connecting apart from sending the request. A response is checked on its
+ * headers before any of its body is read: one that is not an html page, or declares
+ * more than max_body_size bytes, is cancelled at once, and a body that grows past
+ * max_body_size or is not complete within the timeout is cancelled while it is read.
+ * No more than max_body_size bytes are ever held for a request.
+ */
+class AsyncFetcher {
+
+    /**
+     * Collects a body of at most limit bytes within the deadline, cancelling the
+     * download past either. A body that was cancelled or refused completes as null.
+     */
+    private final class LimitedBody implements HttpResponse.BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private final long limit; // Bytes the body may have, -1 to refuse the body
+        private final long deadline; // System.nanoTime() by which the body must be complete
+        private byte[] bytes = new byte[0];
+        private int length = 0;
+        private Flow.Subscription subscription = null;
+
+        LimitedBody(long limit, long deadline) {
+            this.limit = limit;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (limit < 0) {
+                cancel();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (body.isDone()) return;
+            for (var buffer : buffers) {
+                if (length + (long)buffer.remaining() > limit) {
+                    metrics.fail(CrawlMetrics.Failure.TOO_LARGE);
+                    cancel();
+                    return;
+                }
+                if (length + buffer.remaining() > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int)Math.min(limit, Math.max(8192L, 2L * (length + buffer.remaining()))));
+                }
+                final var n = buffer.remaining();
+                buffer.get(bytes, length, n);
+                length += n;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                subscription.cancel();
+                body.completeExceptionally(new HttpTimeoutException("body timed out"));
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            body.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        // Stops the download, the body completes as null
+        void cancel() {
+            if (subscription != null) subscription.cancel();
+            body.complete(null);
+        }
+    }
+
+    /**
+     * A response passed to the parse pool.
+     */
+    static final class Fetched {
+        final int status; // 200, or 304 for a conditional request of a page not modified
+        final String body; // The html of the page, empty for a 304
+        final long length; // Bytes of the body
+        final String etag; // ETag header, null if absent
+        final String last_modified; // Last-Modified header, null if absent
+
+        private Fetched(int status, String body, long length, String etag, String last_modified) {
+            this.status = status;
+            this.body = body;
+            this.length = length;
+            this.etag = etag;
+            this.last_modified = last_modified;
+        }
+    }
+
+    private final HttpClient client;
+    private final Semaphore in_flight; // Permits for requests that have not been parsed yet
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>(); // Sends of requests waiting for a permit, guarded by itself
+    private boolean closed = false; // Whether waiting requests are dropped, guarded by waiting
+    private final Executor parsers; // Runs the body handlers
+    private final String user_agent;
+    private final int max_body_size; // Bytes a body may have
+    private final Duration timeout; // Longest a request may take until its body is complete
+    private final CrawlMetrics metrics; // Receives the time of each stage and failed requests
+
+    // Constructs an AsyncFetcher handing bodies to the parsers
+    AsyncFetcher(int max_in_flight, Executor parsers, String user_agent, int max_body_size, Duration timeout, CrawlMetrics metrics) {
+        this.client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout)
+                .build();
+        this.in_flight = new Semaphore(max_in_flight);
+        this.parsers = parsers;
+        this.user_agent = user_agent;
+        this.max_body_size = max_body_size;
+        this.timeout = timeout;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends a GET for the url, or queues it until one of max_in_flight outstanding
+     * requests has been parsed. If the response is an html page no larger than
+     * max_body_size, or a 304 to a request made conditional on previous, it is passed
+     * to on_body on the parse pool.
+     * on_send runs as the request is sent, or before on_complete if it never is.
+     * on_complete runs exactly once after the request has been fully handled,
+     * whether it succeeded or not, unless the fetcher is shut down first.
+     *
+     * @param url url to fetch
+     * @param previous record of the last fetch to make the request conditional on, or null
+     * @param on_send runs once the request is sent
+     * @param on_body receives the response
+     * @param on_complete runs once the request is done
+     */
+    void fetch(String url, PageRecord previous, Runnable on_send, Consumer<Fetched> on_body, Runnable on_complete) {
+        final HttpRequest request;
+        try {
+            final var builder = HttpRequest.newBuilder(URI.create(url))
+                    .header("User-Agent", user_agent)
+                    .timeout(timeout)
+                    .GET();
+            if (previous != null) previous.condition(builder::header);
+            request = builder.build();
+        }
+        catch (IllegalArgumentException invalid) {
+            on_send.run();
+            on_complete.run();
+            return;
+        }
+        final Runnable send = () -> {
+            on_send.run();
+            send(request, previous != null, on_body, on_complete);
+        };
+        synchronized (waiting) {
+            if (closed) return;
+            if (!in_flight.tryAcquire()) {
+                waiting.add(send);
+                return;
+            }
+        }
+        send.run();
+    }
+
+    /**
+     * Drops the requests waiting for a permit, without running their on_complete,
+     * and those fetched later. Requests already sent are still handled.
+     */
+    void shutdown() {
+        synchronized (waiting) {
+            closed = true;
+            waiting.clear();
+        }
+    }
+
+    // Sends a request holding a permit, which is released once the response has been parsed or failed
+    private void send(HttpRequest request, boolean conditional, Consumer<Fetched> on_body, Runnable on_complete) {
+        final var sent = System.nanoTime();
+        final var headers = new long[1]; // System.nanoTime() once the response headers arrived
+        final var bodies = new LimitedBody[1]; // Subscriber of the body once the response headers arrived
+        final HttpResponse.BodyHandler<Fetched> handler = info -> {
+            headers[0] = metrics.record(CrawlMetrics.Stage.CONNECT, sent);
+            final var refused = refusal(info, conditional);
+            if (refused != null) metrics.fail(refused);
+            bodies[0] = new LimitedBody(refused != null ? -1 : max_body_size, sent + timeout.toNanos());
+            final var charset = charset(info);
+            return HttpResponse.BodySubscribers.mapping(bodies[0], bytes -> bytes == null ? null : new Fetched(
+                    info.statusCode(), new String(bytes, charset), bytes.length,
+                    info.headers().firstValue("ETag").orElse(null), info.headers().firstValue("Last-Modified").orElse(null)));
+        };
+        client.sendAsync(request, handler).orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS).whenComplete((response, error) -> {
+            // Counted like the IOException Jsoup throws for a failed or timed out request, refused bodies are counted already
+            if (error != null) {
+                metrics.fail(CrawlMetrics.Failure.IO);
+                if (bodies[0] != null) bodies[0].cancel();
+            }
+            if (error != null || response.body() == null) {
+                release();
+                on_complete.run();
+                return;
+            }
+            final var downloaded = metrics.record(CrawlMetrics.Stage.DOWNLOAD, headers[0]);
+            metrics.record(CrawlMetrics.Stage.FETCH, sent);
+            try {
+                parsers.execute(() -> {
+                    metrics.record(CrawlMetrics.Stage.QUEUE_WAIT, downloaded);
+                    try {
+                        on_body.accept(response.body());
+                    }
+                    finally {
+                        release();
+                        on_complete.run();
+                    }
+                });
+            }
+            catch (RejectedExecutionException stopped) {
+                metrics.fail(CrawlMetrics.Failure.REJECTED);
+                release();
+                on_complete.run();
+            }
+        });
+    }
+
+    // Hands the permit of a handled request to the next waiting request, or frees it if none waits
+    private void release() {
+        final Runnable next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                in_flight.release();
+                return;
+            }
+        }
+        next.run();
+    }
+
+    // The charset of the Content-Type header, UTF-8 if absent or unknown like BodyHandlers.ofString()
+    private static Charset charset(HttpResponse.ResponseInfo info) {
+        final var type = info.headers().firstValue("Content-Type").orElse("");
+        final var at = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (at < 0) return StandardCharsets.UTF_8;
+        var name = type.substring(at + 8).trim();
+        if (name.indexOf(';') >= 0) name = name.substring(0, name.indexOf(';')).trim();
+        try {
+            return Charset.forName(name.replace("\"", ""));
+        }
+        catch (IllegalArgumentException unknown) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    // The failure a response is refused for on its headers, or null if its body is to be read
+    private CrawlMetrics.Failure refusal(HttpResponse.ResponseInfo info, boolean conditional) {
+        if (conditional && info.statusCode() == 304) return null;
+        if (info.statusCode() != 200) return CrawlMetrics.Failure.IO;
+        if (!isHtml(info)) return CrawlMetrics.Failure.NOT_HTML;
+        final var length = info.headers().firstValueAsLong("Content-Length");
+        if (length.isPresent() && length.getAsLong() > max_body_size) return CrawlMetrics.Failure.TOO_LARGE;
+        return null;
+    }
+
+    // Matches the content types Jsoup's execute() accepts
+    private static boolean isHtml(HttpResponse.ResponseInfo info) {
+        final var type = info.headers().firstValue("Content-Type").orElse("text/html").toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("xml");
+    }
+}
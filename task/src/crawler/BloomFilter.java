@@ -0,0 +1,91 @@
+package crawler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over 64-bit url fingerprints. It never forgets a fingerprint
+ * that was added, but may report one that was not, at about the false positive
+ * rate it was sized for until more than the expected number of fingerprints have
+ * been added. Adds of the same fingerprint take the same one of a set of striped
+ * locks, so exactly one of any number of concurrent adds reports it as new; bits
+ * are still set with compare and set, as fingerprints of other stripes share words.
+ */
+class BloomFilter {
+
+    private static final int stripe_bits = 6;
+
+    private final Object[] stripes = new Object[1 << stripe_bits]; // Locks of the adds, chosen by the high bits of a fingerprint
+    private final AtomicLongArray bits;
+    private final long bit_count; // Bits in the filter
+    private final int hash_count; // Bits set per fingerprint
+    private final AtomicLong size = new AtomicLong(); // Fingerprints added that set at least one new bit
+
+    /**
+     * Constructs a BloomFilter sized for expected fingerprints at the given false positive rate.
+     *
+     * @param expected number of fingerprints expected
+     * @param false_positive_rate chance a fingerprint not added is reported as added
+     */
+    BloomFilter(long expected, double false_positive_rate) {
+        if (expected < 1) throw new IllegalArgumentException("expected invalid");
+        if (false_positive_rate <= 0 || false_positive_rate >= 1) throw new IllegalArgumentException("false_positive_rate invalid");
+        final var optimal = (long)Math.ceil(-expected * Math.log(false_positive_rate) / (Math.log(2) * Math.log(2)));
+        final var words = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimal + 63) >>> 6));
+        bits = new AtomicLongArray(words);
+        bit_count = 64L * words;
+        hash_count = Math.max(1, (int)Math.round((double)bit_count / expected * Math.log(2)));
+        for (var i = 0; i < stripes.length; i++) stripes[i] = new Object();
+    }
+
+    /**
+     * Adds a fingerprint.
+     *
+     * @param fingerprint the fingerprint to add
+     * @return true if the fingerprint was definitely not in the filter before
+     */
+    boolean add(long fingerprint) {
+        // Derive every bit index from the two halves of the fingerprint (Kirsch and Mitzenmacher)
+        final var low = (int)fingerprint;
+        final var high = (int)(fingerprint >>> 32);
+        var added = false;
+        synchronized (stripes[(int)(fingerprint >>> (64 - stripe_bits))]) {
+            for (var i = 0; i < hash_count; i++) {
+                final var index = Math.floorMod(low + (long)i * high, bit_count);
+                final var word = (int)(index >>> 6);
+                final var mask = 1L << index;
+                long current;
+                while (((current = bits.get(word)) & mask) == 0) {
+                    if (bits.compareAndSet(word, current, current | mask)) {
+                        added = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if (added) size.incrementAndGet();
+        return added;
+    }
+
+    /**
+     * @return the number of fingerprints added that were not already reported as present
+     */
+    long size() {
+        return size.get();
+    }
+
+    /**
+     * @return the bytes held by the bits
+     */
+    long bytes() {
+        return 8L * bits.length();
+    }
+
+    /**
+     * Removes every fingerprint.
+     */
+    void clear() {
+        for (var i = 0; i < bits.length(); i++) bits.set(i, 0L);
+        size.set(0);
+    }
+}
@@ -0,0 +1,516 @@
+package crawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Connects the nodes of a distributed crawl, one Crawler per JVM. Every host is
+ * owned by one node through a HashRing, and a node only claims and fetches the urls
+ * of its own hosts, so that each keeps its own frontier and seen set partition.
+ * Links to the hosts of other nodes are batched per node and written over a plain
+ * TCP connection, and claimed by the receiving node as if it had found them.
+ * <p>
+ * Node 0 coordinates: it probes every node in waves for whether it is idle and how
+ * many links it has sent and received, and ends the crawl on every node once two
+ * consecutive waves find every node idle with the same totals and as many links
+ * received as sent, as then no link can still be on its way.
+ * <p>
+ * A node that cannot be reached for connect_millis fails the crawl on every node
+ * rather than losing the links meant for it and leaving the waves waiting for it
+ * forever: a node that cannot write a batch to it, the coordinator once it has not
+ * answered a probe for that long, and any other node once the coordinator has not
+ * probed it for that long.
+ * <p>
+ * A node only reads connections from the addresses of the nodes, and connects to
+ * the others from its own. Messages are neither authenticated nor encrypted, so
+ * the port of a node must not be reachable from outside the network of the crawl.
+ */
+class Cluster {
+
+    // Message types, each followed by its fields
+    private static final byte LINKS = 1; // int count, then count times UTF url and int depth
+    private static final byte PROBE = 2; // long wave
+    private static final byte STATUS = 3; // int node, long wave, boolean idle, long sent, long received
+    private static final byte STOP = 4;
+    private static final byte FAIL = 5; // UTF reason
+
+    private static final long probe_millis = 200L; // Time between probe waves
+    private static final int probe_patience = 25; // Probe waves a wave waits for every node to answer
+
+    // A link waiting to be handed to its node
+    private static final class Link {
+        final String url;
+        final int depth;
+
+        Link(String url, int depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+    }
+
+    // Another node, the links batched for it and the connection they are written to
+    private final class Peer {
+        final InetSocketAddress address;
+        final LinkedBlockingQueue<Link> links = new LinkedBlockingQueue<>();
+        Socket socket = null; // Null until connected, guarded by this
+        DataOutputStream out = null;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        // Sender loop, batches links until the cluster is closed
+        void send() {
+            final var batch = new ArrayList<Link>(batch_size);
+            try {
+                while (!closed) {
+                    final var first = links.poll(flush_millis, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    // Let the batch fill up for at most flush_millis
+                    final var deadline = System.currentTimeMillis() + flush_millis;
+                    while (batch.size() < batch_size) {
+                        links.drainTo(batch, batch_size - batch.size());
+                        final var wait = deadline - System.currentTimeMillis();
+                        if (batch.size() >= batch_size || wait <= 0) break;
+                        final var next = links.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next != null) batch.add(next);
+                    }
+                    write(batch);
+                    batch.clear();
+                }
+            }
+            catch (InterruptedException ignored) {}
+            // Release the links that will never be sent
+            handed.accept(batch.size() + links.size());
+        }
+
+        // Writes a batch of links, retrying until connect_millis have passed without a connection
+        private void write(List<Link> batch) {
+            final var deadline = System.currentTimeMillis() + connect_millis;
+            while (!closed) {
+                try {
+                    synchronized (this) {
+                        connect();
+                        out.writeByte(LINKS);
+                        out.writeInt(batch.size());
+                        for (var link : batch) {
+                            out.writeUTF(link.url);
+                            out.writeInt(link.depth);
+                        }
+                        out.flush();
+                    }
+                    metrics.links_sent.add(batch.size());
+                    handed.accept(batch.size());
+                    return;
+                }
+                catch (IOException failed) {
+                    disconnect();
+                    if (System.currentTimeMillis() >= deadline) break;
+                    try {
+                        Thread.sleep(100L);
+                    }
+                    catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            // The node is gone, the crawl cannot be completed without the links meant for it
+            if (!closed) {
+                metrics.fail(CrawlMetrics.Failure.PEER);
+                failAll("node " + address + " unreachable for " + connect_millis + " ms, " + batch.size() + " links lost");
+            }
+            handed.accept(batch.size());
+        }
+
+        // Writes a control message, skipped if the node cannot be reached at once
+        void control(Message message) {
+            try {
+                synchronized (this) {
+                    connect();
+                    message.write(out);
+                    out.flush();
+                }
+            }
+            catch (IOException failed) {
+                disconnect();
+            }
+        }
+
+        // Connects to the node unless connected already, must hold this
+        private void connect() throws IOException {
+            if (out != null) return;
+            if (closed) throw new IOException("cluster closed");
+            final var connection = new Socket();
+            try {
+                // From the address of this node, the only one of it the other nodes accept
+                if (!Cluster.this.address.isUnresolved() && !Cluster.this.address.getAddress().isAnyLocalAddress()) {
+                    connection.bind(new InetSocketAddress(Cluster.this.address.getAddress(), 0));
+                }
+                connection.connect(address, 5000);
+                connection.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+                socket = connection;
+            }
+            catch (IOException failed) {
+                connection.close();
+                throw failed;
+            }
+        }
+
+        synchronized void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ignored) {}
+            }
+            socket = null;
+            out = null;
+        }
+    }
+
+    // Writes the fields of a control message
+    private interface Message {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final int node; // Index of this node
+    private final InetSocketAddress address; // Address this node listens on
+    private final Set<InetAddress> members; // Addresses of every node, the only ones connections are read from
+    private final HashRing ring;
+    private final Peer[] peers; // Every other node by index, null at the index of this node
+    private final int batch_size; // Links per hand-off
+    private final long flush_millis; // Longest a link waits for its batch to fill
+    private final long connect_millis; // Longest a batch waits for its node to be reachable
+    private final ObjIntConsumer<String> receive; // Claims and submits a link handed over by another node
+    private final BooleanSupplier idle; // Whether this node has no url outstanding
+    private final IntConsumer handed; // Receives the number of links written to another node or lost
+    private final Runnable stop; // Ends the crawl on this node
+    private final CrawlMetrics metrics; // Counts the links sent and received and the lost batches
+
+    private final ExecutorService threads; // Accepts connections, reads them and runs the senders
+    private final ScheduledExecutorService prober; // Probes every node in waves, or watches for the probes of the coordinator
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final AtomicReference<String> failure = new AtomicReference<>(); // Why the crawl failed, null unless it did
+    private volatile long probed_at = 0L; // System.currentTimeMillis() of the last probe of the coordinator received
+    private volatile boolean closed = false;
+    private ServerSocket server = null;
+
+    // Probe waves of the coordinator, guarded by this
+    private final Map<Integer, long[]> statuses = new ConcurrentHashMap<>(); // Answers to the current wave by node
+    private long wave = 0; // Number of the current wave
+    private int wave_age = 0; // Probe waves the current wave has been waiting
+    private long[] own = null; // Status of the coordinator when the current wave was sent
+    private long[] last = null; // Totals of the last complete wave that found every node idle
+    private final long[] answered_at; // System.currentTimeMillis() of the last answer of each node
+
+    /**
+     * Constructs a Cluster that does not connect to any node until started. The
+     * links of a batch are passed to handed once written, or once their node could
+     * not be reached for connect_millis. stop is run once, when the coordinator ends
+     * the crawl, any node is stopped or the crawl fails.
+     *
+     * @param nodes host:port of every node in order, the same on every node
+     * @param node index of this node in nodes, 0 for the coordinator
+     * @param batch_size links per hand-off
+     * @param flush_millis longest a link waits for its batch to fill
+     * @param connect_millis longest a node may be unreachable before the crawl fails
+     * @param receive claims and submits a link handed over by another node
+     * @param idle whether this node has no url outstanding
+     * @param handed receives the number of links written to another node or lost
+     * @param stop ends the crawl on this node
+     * @param metrics counts the links sent and received
+     */
+    Cluster(List<String> nodes, int node, int batch_size, long flush_millis, long connect_millis, ObjIntConsumer<String> receive,
+            BooleanSupplier idle, IntConsumer handed, Runnable stop, CrawlMetrics metrics) {
+        if (node < 0 || node >= nodes.size()) throw new IllegalArgumentException("node invalid");
+        if (batch_size < 1) throw new IllegalArgumentException("batch_size invalid");
+        this.node = node;
+        this.address = address(nodes.get(node));
+        this.ring = new HashRing(nodes, HashRing.DEFAULT_REPLICAS);
+        this.peers = new Peer[nodes.size()];
+        this.members = ConcurrentHashMap.newKeySet();
+        for (var peer = 0; peer < nodes.size(); peer++) {
+            final var member = address(nodes.get(peer));
+            if (!member.isUnresolved()) members.add(member.getAddress());
+            if (peer != node) peers[peer] = new Peer(member);
+        }
+        this.batch_size = batch_size;
+        this.flush_millis = flush_millis;
+        this.connect_millis = connect_millis;
+        this.receive = receive;
+        this.idle = idle;
+        this.handed = handed;
+        this.stop = stop;
+        this.metrics = metrics;
+        this.threads = Executors.newCachedThreadPool(Crawler.daemon("cluster"));
+        this.prober = Executors.newSingleThreadScheduledExecutor(Crawler.daemon("cluster-prober"));
+        this.answered_at = new long[nodes.size()];
+    }
+
+    // Parses host:port
+    private static InetSocketAddress address(String node) {
+        final var colon = node.lastIndexOf(':');
+        if (colon < 1) throw new IllegalArgumentException("node address invalid: " + node);
+        try {
+            return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        }
+        catch (IllegalArgumentException invalid) {
+            throw new IllegalArgumentException("node address invalid: " + node);
+        }
+    }
+
+    /**
+     * Starts listening for the other nodes and sending them links. Until a node has
+     * started, the links batched for it wait and the coordinator never finds every
+     * node idle, so each node should only start once its own work has been submitted.
+     *
+     * @throws IOException if the address of this node cannot be listened on
+     */
+    void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address, 128);
+        threads.execute(this::accept);
+        for (var peer : peers) {
+            if (peer != null) threads.execute(peer::send);
+        }
+        // Every node gets connect_millis from now to start
+        final var now = System.currentTimeMillis();
+        Arrays.fill(answered_at, now);
+        probed_at = now;
+        prober.scheduleWithFixedDelay(node == 0 ? this::probe : this::watch, probe_millis, probe_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param url a canonical url
+     * @return whether the host of the url belongs to this node
+     */
+    boolean owns(String url) {
+        return ring.ownerOfUrl(url) == node;
+    }
+
+    /**
+     * Queues a link for the node owning its host. It is passed to handed once written,
+     * or at once if the cluster is closed.
+     *
+     * @param url a canonical url owned by another node
+     * @param depth depth of the url
+     */
+    void send(String url, int depth) {
+        final var peer = peers[ring.ownerOfUrl(url)];
+        if (closed || peer == null) {
+            handed.accept(1);
+            return;
+        }
+        peer.links.add(new Link(url, depth));
+    }
+
+    /**
+     * Ends the crawl on every node, and on this one, unless it has been ended already.
+     */
+    void stopAll() {
+        if (!stopped.compareAndSet(false, true)) return;
+        for (var peer : peers) {
+            if (peer != null) peer.control(out -> out.writeByte(STOP));
+        }
+        stop.run();
+    }
+
+    /**
+     * Fails the crawl on every node that can be reached, and ends it on this one,
+     * unless it has been ended already.
+     *
+     * @param reason why the crawl failed
+     */
+    void failAll(String reason) {
+        failure.compareAndSet(null, reason);
+        if (!stopped.compareAndSet(false, true)) return;
+        for (var peer : peers) {
+            if (peer != null) peer.control(out -> {
+                out.writeByte(FAIL);
+                out.writeUTF(reason);
+            });
+        }
+        stop.run();
+    }
+
+    /**
+     * @return why the crawl failed, on this node or the one that failed it, null unless it did
+     */
+    String failure() {
+        return failure.get();
+    }
+
+    /**
+     * Stops listening and sending, links not sent yet are passed to handed.
+     */
+    void close() {
+        closed = true;
+        prober.shutdownNow();
+        if (server != null) {
+            try {
+                server.close();
+            }
+            catch (IOException ignored) {}
+        }
+        for (var peer : peers) {
+            if (peer != null) peer.disconnect();
+        }
+        threads.shutdownNow();
+    }
+
+    // Accepts the connections of the other nodes, closing those from any other address
+    private void accept() {
+        while (!closed) {
+            try {
+                final var connection = server.accept();
+                if (!members.contains(connection.getInetAddress())) {
+                    connection.close();
+                    continue;
+                }
+                threads.execute(() -> read(connection));
+            }
+            catch (IOException failed) {
+                if (closed) return;
+            }
+        }
+    }
+
+    // Reads the messages of another node until it disconnects
+    private void read(Socket connection) {
+        try (connection; var in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024))) {
+            while (!closed) {
+                final var type = in.readByte();
+                if (type == LINKS) {
+                    // Read the whole batch first, as a batch cut off by a failed connection is written again
+                    final var count = in.readInt();
+                    final var batch = new ArrayList<Link>(count);
+                    for (var i = 0; i < count; i++) batch.add(new Link(in.readUTF(), in.readInt()));
+                    for (var link : batch) {
+                        // Received only once submitted, so that this node is not idle while the link is not counted
+                        receive.accept(link.url, link.depth);
+                        metrics.links_received.increment();
+                    }
+                }
+                else if (type == PROBE) {
+                    final var probed = in.readLong();
+                    probed_at = System.currentTimeMillis();
+                    final var status = status();
+                    peers[0].control(out -> {
+                        out.writeByte(STATUS);
+                        out.writeInt(node);
+                        out.writeLong(probed);
+                        out.writeBoolean(status[0] == 1);
+                        out.writeLong(status[1]);
+                        out.writeLong(status[2]);
+                    });
+                }
+                else if (type == STATUS) {
+                    final var from = in.readInt();
+                    final var probed = in.readLong();
+                    final var status = new long[] {in.readBoolean() ? 1 : 0, in.readLong(), in.readLong()};
+                    answered(from, probed, status);
+                }
+                else if (type == STOP) {
+                    if (stopped.compareAndSet(false, true)) stop.run();
+                }
+                else if (type == FAIL) {
+                    final var reason = in.readUTF();
+                    failure.compareAndSet(null, reason);
+                    if (stopped.compareAndSet(false, true)) stop.run();
+                }
+                else throw new IOException("message type invalid: " + type);
+            }
+        }
+        // A node that disconnects reconnects for its next message
+        catch (EOFException ignored) {}
+        catch (IOException ignored) {}
+    }
+
+    // Idle as 1 or 0, links sent and links received, received read first so that a link in between is never missed
+    private long[] status() {
+        final var received = metrics.links_received.sum();
+        final var idle = this.idle.getAsBoolean() ? 1L : 0L;
+        final var sent = metrics.links_sent.sum();
+        return new long[] {idle, sent, received};
+    }
+
+    // Records the answer of a node to a wave
+    private synchronized void answered(int from, long probed, long[] status) {
+        if (from >= 0 && from < answered_at.length) answered_at[from] = System.currentTimeMillis();
+        if (probed == wave) statuses.put(from, status);
+    }
+
+    // Fails the crawl once the coordinator has not probed this node for connect_millis
+    private void watch() {
+        if (System.currentTimeMillis() - probed_at >= connect_millis) failAll("node 0 has not probed node " + node + " for " + connect_millis + " ms");
+    }
+
+    // Decides on the current wave once every node has answered it, then sends the next one
+    private synchronized void probe() {
+        if (wave > 0 && statuses.size() < peers.length - 1 && ++wave_age < probe_patience) return;
+        if (wave > 0 && statuses.size() < peers.length - 1) {
+            final var now = System.currentTimeMillis();
+            for (var peer = 1; peer < peers.length; peer++) {
+                if (now - answered_at[peer] >= connect_millis) {
+                    failAll("node " + peer + " has not answered for " + connect_millis + " ms");
+                    return;
+                }
+            }
+        }
+        if (wave > 0 && statuses.size() == peers.length - 1) {
+            var idle = own[0] == 1;
+            var sent = own[1];
+            var received = own[2];
+            for (var status : statuses.values()) {
+                idle &= status[0] == 1;
+                sent += status[1];
+                received += status[2];
+            }
+            if (idle && sent == received && last != null && last[0] == sent && last[1] == received) {
+                stopAll();
+                return;
+            }
+            last = idle && sent == received ? new long[] {sent, received} : null;
+        }
+        else last = null;
+        wave++;
+        wave_age = 0;
+        statuses.clear();
+        own = status();
+        final var probed = wave;
+        for (var peer : peers) {
+            if (peer != null) peer.control(out -> {
+                out.writeByte(PROBE);
+                out.writeLong(probed);
+            });
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package crawler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Settings of a single crawl. The Swing UI fills these in from its fields, the
+ * headless entry point reads them from --key=value arguments and an optional
+ * properties file given by --config using the same keys.
+ */
+class CrawlConfig {
+
+    /**
+     * How pages are fetched.
+     */
+    enum Engine {
+        BLOCKING, // Each worker thread blocks in Jsoup for the whole request
+        ASYNC     // Requests are sent by a non-blocking HttpClient, workers only parse
+    }
+
+    /**
+     * Order in which queued urls are fetched.
+     */
+    enum Priority {
+        BFS, // Shallowest first
+        DFS  // Deepest first
+    }
+
+    // Keys accepted in arguments and properties files
+    static final String usage = String.join(System.lineSeparator(),
+            "usage: WebCrawler --url=<start url> [--key=value ...]",
+            "  --config=<file>        properties file holding any of the keys below",
+            "  --workers=<1-100>      number of worker threads (default 1)",
+            "  --engine=<engine>      blocking or async (default blocking)",
+            "  --max-in-flight=<n>    requests outstanding at once with the async engine, until parsed (default 1000)",
+            "  --depth=<n>            maximum depth, unlimited if absent",
+            "  --max-body-size=<n>    bytes of a page read at most, larger pages are skipped (default 2097152)",
+            "  --fetch-timeout=<s>    seconds a page may take to fetch (default 30)",
+            "  --priority=<order>     bfs or dfs (default bfs), spilled urls are read back oldest first,",
+            "                         so a dfs crawl is only depth first among the urls held in memory",
+            "  --queue-capacity=<n>   queued urls held in memory, the rest are spilled to disk (default 100000)",
+            "  --spill-dir=<dir>      directory of the spill file (default the temporary directory)",
+            "  --seen-set=<mode>      strings, fingerprints or bloom (default strings), with --stream",
+            "                         no url or title is kept on the heap for the whole crawl",
+            "  --expected-urls=<n>    urls the fingerprints or bloom seen set is sized for (default 1000000)",
+            "  --politeness=<bool>    schedule requests host by host (default false)",
+            "  --host-concurrency=<n> requests to one host at once with --politeness (default 4)",
+            "  --host-delay=<ms>      minimum time between requests to one host (default 0)",
+            "  --robots=<bool>        honour robots.txt Disallow and Crawl-delay, with --politeness (default false)",
+            "  --time-limit=<s>       stop the crawl after s seconds, unlimited if absent",
+            "  --checkpoint=<file>    keep a checkpoint of the crawl in file, none if absent",
+            "  --checkpoint-interval=<s>",
+            "                         seconds between forcing the checkpoint to disk (default 10)",
+            "  --resume=<bool>        continue the crawl of the checkpoint instead of starting over,",
+            "                         urls whose fetch failed count as visited and are not fetched again",
+            "  --nodes=<host:port,...>",
+            "                         every node of a distributed crawl, in the same order on each, none if absent,",
+            "                         links are taken from these addresses unauthenticated, do not expose the ports",
+            "  --node=<n>             index of this node in --nodes, node 0 coordinates (default 0)",
+            "  --node-timeout=<s>     seconds a node may be unreachable before the distributed crawl fails (default 60)",
+            "  --metrics-interval=<s> seconds between dumps of the stage timings and failures, none if absent",
+            "  --metrics-format=<fmt> text or json (default text)",
+            "  --metrics-file=<file>  file the dumps are appended to (default standard error)",
+            "  --extractor=<mode>     dom or streaming (default dom)",
+            "  --canonicalize=<rules> comma separated url normalizations applied to every link, of strip-fragment,",
+            "                         remove-dot-segments, strip-default-port, lowercase-host and strip-tracking-params,",
+            "                         or none (default all)",
+            "  --tracking-params=<names>",
+            "                         comma separated query parameters dropped by strip-tracking-params (default utm_source,",
+            "                         utm_medium, utm_campaign, utm_term, utm_content, gclid, fbclid, msclkid, mc_cid, mc_eid,",
+            "                         _ga, ref_src)",
+            "  --stream=<bool>        write pages to the database while crawling",
+            "  --recrawl=<bool>       fetch the pages of the database conditionally and skip unchanged ones",
+            "  --migrate=<bool>       add the columns --recrawl needs to the pages table if it lacks them (default false)",
+            "  --upload=<bool>        upload pages to the database once the crawl finishes",
+            "  --db-url=<jdbc url>    database to upload to",
+            "  --db-user=<user>       database user (default $CRAWLER_DB_USER), required to use the database",
+            "  --db-password=<pass>   database password (default $CRAWLER_DB_PASSWORD), required to use the database,",
+            "                         the environment keeps it out of the process list",
+            "  --batch-size=<n>       rows per database batch (default " + PageUploader.DEFAULT_BATCH_SIZE + ")");
+
+    String start_url = null; // Url the crawl starts from
+    int worker_count = 1; // Number of worker threads
+    Engine engine = Engine.BLOCKING; // How pages are fetched
+    int max_in_flight = 1000; // Requests outstanding at once with the async engine, until their body is parsed
+    Integer max_depth = null; // Maximum depth of the crawl, null for unlimited
+    int max_body_size = 2 * 1024 * 1024; // Bytes of a page read at most, larger pages are skipped
+    long fetch_timeout = 30; // Seconds a page may take from sending the request to reading its body
+    Priority priority = Priority.BFS; // Order in which queued urls are fetched
+    int queue_capacity = 100_000; // Queued urls held in memory by the blocking engine and by the host scheduler each
+    String spill_directory = System.getProperty("java.io.tmpdir"); // Directory of the spill file
+    Frontier.Mode seen_set = Frontier.Mode.STRINGS; // How claimed urls are remembered
+    long expected_urls = 1_000_000; // Urls the seen set is sized for
+    boolean politeness = false; // Whether requests are scheduled host by host
+    int host_concurrency = 4; // Requests to one host at once
+    long host_delay = 0; // Minimum milliseconds between requests to one host
+    boolean robots = false; // Whether robots.txt is honoured, with politeness only
+    long time_limit = 0; // Seconds before the crawl is stopped, 0 for unlimited
+    String checkpoint = null; // File the crawl is checkpointed to, null for none
+    long checkpoint_interval = 10; // Seconds between forcing the checkpoint to disk
+    boolean resume = false; // Whether the crawl continues from the checkpoint
+    List<String> nodes = null; // Addresses of every node of a distributed crawl, null for a single node
+    int node = 0; // Index of this node in nodes
+    long node_timeout = 60; // Seconds a node may be unreachable before the distributed crawl fails
+    long metrics_interval = 0; // Seconds between metrics dumps, 0 for none
+    CrawlMetrics.Format metrics_format = CrawlMetrics.Format.TEXT; // Format of the metrics dumps
+    String metrics_file = null; // File the metrics dumps are appended to, null for standard error
+    LinkExtractor.Mode extractor = LinkExtractor.Mode.DOM; // How fetched pages are read
+    EnumSet<UrlCanonicalizer.Rule> canonical_rules = EnumSet.allOf(UrlCanonicalizer.Rule.class); // Normalizations applied to every link
+    Set<String> tracking_params = UrlCanonicalizer.TRACKING_PARAMS; // Query parameters dropped by STRIP_TRACKING_PARAMS
+    boolean stream = false; // Whether pages are written to the database while crawling
+    boolean recrawl = false; // Whether the pages of the previous crawl in the database are fetched conditionally
+    boolean migrate = false; // Whether a re-crawl may alter the pages table to add the validator columns
+    boolean upload = false; // Whether pages are uploaded once the crawl finishes, used headless
+    String database_url = PageUploader.DEFAULT_URL; // JDBC url of the pages database
+    String database_user = System.getenv("CRAWLER_DB_USER"); // Database user, null if not given
+    String database_password = System.getenv("CRAWLER_DB_PASSWORD"); // Database password, null if not given
+    int batch_size = PageUploader.DEFAULT_BATCH_SIZE; // Rows per database batch
+
+    /**
+     * Builds a config from command line arguments. A --config file is read first
+     * so that the other arguments override it.
+     *
+     * @param args arguments of the form --key=value
+     * @return the validated config
+     * @throws IOException if the config file cannot be read
+     * @throws IllegalArgumentException if an argument is unknown or invalid
+     */
+    static CrawlConfig parse(String[] args) throws IOException {
+        final var properties = new Properties();
+        final var overrides = new Properties();
+        for (var arg : args) {
+            final var equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) throw new IllegalArgumentException("argument invalid: " + arg);
+            final var key = arg.substring(2, equals);
+            final var value = arg.substring(equals + 1);
+            if (key.equals("config")) {
+                try (Reader reader = Files.newBufferedReader(Path.of(value))) {
+                    properties.load(reader);
+                }
+            }
+            else overrides.setProperty(key, value);
+        }
+        properties.putAll(overrides);
+        final var config = new CrawlConfig();
+        for (var key : properties.stringPropertyNames()) config.set(key, properties.getProperty(key).trim());
+        config.validate();
+        return config;
+    }
+
+    // Applies a single key of an argument or properties file
+    private void set(String key, String value) {
+        switch (key) {
+            case "url": start_url = value; break;
+            case "workers": worker_count = Integer.parseInt(value); break;
+            case "engine": engine = Engine.valueOf(value.toUpperCase(Locale.ROOT)); break;
+            case "max-in-flight": max_in_flight = Integer.parseInt(value); break;
+            case "depth": max_depth = Integer.parseInt(value); break;
+            case "max-body-size": max_body_size = Integer.parseInt(value); break;
+            case "fetch-timeout": fetch_timeout = Long.parseLong(value); break;
+            case "priority": priority = Priority.valueOf(value.toUpperCase(Locale.ROOT)); break;
+            case "queue-capacity": queue_capacity = Integer.parseInt(value); break;
+            case "spill-dir": spill_directory = value; break;
+            case "seen-set": seen_set = Frontier.Mode.valueOf(value.toUpperCase(Locale.ROOT)); break;
+            case "expected-urls": expected_urls = Long.parseLong(value); break;
+            case "politeness": politeness = Boolean.parseBoolean(value); break;
+            case "host-concurrency": host_concurrency = Integer.parseInt(value); break;
+            case "host-delay": host_delay = Long.parseLong(value); break;
+            case "robots": robots = Boolean.parseBoolean(value); break;
+            case "time-limit": time_limit = Long.parseLong(value); break;
+            case "checkpoint": checkpoint = value; break;
+            case "checkpoint-interval": checkpoint_interval = Long.parseLong(value); break;
+            case "resume": resume = Boolean.parseBoolean(value); break;
+            case "nodes": nodes = list(value); break;
+            case "node": node = Integer.parseInt(value); break;
+            case "node-timeout": node_timeout = Long.parseLong(value); break;
+            case "metrics-interval": metrics_interval = Long.parseLong(value); break;
+            case "metrics-format": metrics_format = CrawlMetrics.Format.valueOf(value.toUpperCase(Locale.ROOT)); break;
+            case "metrics-file": metrics_file = value; break;
+            case "extractor": extractor = LinkExtractor.Mode.valueOf(value.toUpperCase(Locale.ROOT)); break;
+            case "canonicalize": canonical_rules = rules(value); break;
+            case "tracking-params": tracking_params = new HashSet<>(list(value)); break;
+            case "stream": stream = Boolean.parseBoolean(value); break;
+            case "recrawl": recrawl = Boolean.parseBoolean(value); break;
+            case "migrate": migrate = Boolean.parseBoolean(value); break;
+            case "upload": upload = Boolean.parseBoolean(value); break;
+            case "db-url": database_url = value; break;
+            case "db-user": database_user = value; break;
+            case "db-password": database_password = value; break;
+            case "batch-size": batch_size = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("unknown key: " + key);
+        }
+    }
+
+    // Splits a comma separated value, an empty value being an empty list
+    private static List<String> list(String value) {
+        return value.isEmpty() ? List.of() : Arrays.asList(value.split("\\s*,\\s*"));
+    }
+
+    // Reads comma separated canonicalization rules such as strip-fragment, or none
+    private static EnumSet<UrlCanonicalizer.Rule> rules(String value) {
+        final var rules = EnumSet.noneOf(UrlCanonicalizer.Rule.class);
+        if (value.equalsIgnoreCase("none")) return rules;
+        for (var rule : list(value)) rules.add(UrlCanonicalizer.Rule.valueOf(rule.toUpperCase(Locale.ROOT).replace('-', '_')));
+        return rules;
+    }
+
+    /**
+     * Checks that the settings describe a crawl that can be run.
+     *
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    void validate() {
+        if (start_url == null || start_url.isEmpty()) throw new IllegalArgumentException("start url missing");
+        if (worker_count < 1 || worker_count > 100) throw new IllegalArgumentException("worker_count invalid");
+        if (max_in_flight < 1 || max_in_flight > 100_000) throw new IllegalArgumentException("max_in_flight invalid");
+        if (max_depth != null && max_depth < 0) throw new IllegalArgumentException("max_depth invalid");
+        if (max_body_size < 1 || max_body_size == Integer.MAX_VALUE) throw new IllegalArgumentException("max_body_size invalid");
+        if (fetch_timeout < 1 || fetch_timeout > Integer.MAX_VALUE / 1000) throw new IllegalArgumentException("fetch_timeout invalid");
+        if (queue_capacity < 1) throw new IllegalArgumentException("queue_capacity invalid");
+        if (expected_urls < 1) throw new IllegalArgumentException("expected_urls invalid");
+        if (host_concurrency < 1) throw new IllegalArgumentException("host_concurrency invalid");
+        if (host_delay < 0) throw new IllegalArgumentException("host_delay invalid");
+        if (time_limit < 0) throw new IllegalArgumentException("time_limit invalid");
+        if (checkpoint_interval < 1) throw new IllegalArgumentException("checkpoint_interval invalid");
+        if (resume && checkpoint == null) throw new IllegalArgumentException("resume invalid without checkpoint");
+        if (nodes != null && (node < 0 || node >= nodes.size())) throw new IllegalArgumentException("node invalid");
+        if (node_timeout < 1) throw new IllegalArgumentException("node_timeout invalid");
+        if (metrics_interval < 0) throw new IllegalArgumentException("metrics_interval invalid");
+        if (canonical_rules == null || tracking_params == null) throw new IllegalArgumentException("canonicalization invalid");
+        if (batch_size < 1) throw new IllegalArgumentException("batch_size invalid");
+        if (upload || stream || recrawl) validateDatabase();
+    }
+
+    /**
+     * Checks that the database can be logged in to, before anything is written to
+     * or read from it.
+     *
+     * @throws IllegalArgumentException if the database user or password is missing
+     */
+    void validateDatabase() {
+        if (database_user == null || database_user.isEmpty()) throw new IllegalArgumentException("database_user missing");
+        if (database_password == null) throw new IllegalArgumentException("database_password missing");
+    }
+}
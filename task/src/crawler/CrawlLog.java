@@ -0,0 +1,303 @@
+package crawler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checkpoint of a crawl kept as an append-only log, from which a stopped or
+ * crashed crawl is resumed without fetching its visited pages again. Every claimed
+ * url is logged with its depth, and every visited url is logged once its links
+ * have been claimed, with its title if the page was recorded. A url whose fetch
+ * failed is visited like any other, so a resumed crawl does not fetch it again.
+ * The log is forced to disk every checkpoint interval, and once it has grown as
+ * large as the last compaction it is merged into a base file holding a single
+ * line per url.
+ * <p>
+ * The checkpoint is made of the base file itself, its log at file.log, and while
+ * a compaction runs the log being merged at file.log.1 and the new base at
+ * file.tmp. The merged log is deleted before the new base replaces the old one,
+ * so a log is never merged twice: while file.log.1 exists the base does not hold
+ * it, and a file.tmp left without it is a complete base. Lines are tab separated:
+ * C depth url for a claimed url, P url title for a recorded page and D url for a
+ * url visited without recording a page.
+ */
+class CrawlLog {
+
+    private static final long min_compact_records = 100_000; // Log lines before the first compaction
+
+    private final Path base; // Compacted lines
+    private final Path log; // Lines appended since the last compaction
+    private final Path merging; // Log being merged into base
+    private final Path merged; // New base written by a merge
+    private final ScheduledExecutorService checkpointer; // Forces the log to disk and compacts it
+
+    private final LinkedHashMap<String, Integer> pending = new LinkedHashMap<>(); // Restored urls not visited yet, by depth
+    private int parsed = 0; // Restored pages
+
+    private FileChannel channel; // Of log
+    private BufferedWriter writer; // Appends to log, null once closed
+    private long records = 0; // Lines in log
+    private long base_records = 0; // Lines in base after the last compaction
+
+    /**
+     * Opens the checkpoint at file. When resuming, the checkpoint is read back first:
+     * every url it holds is restored to the frontier, recorded pages are put in pages
+     * and claimed urls that were not visited are kept as pending. Otherwise any
+     * previous checkpoint at file is deleted.
+     *
+     * @param file the checkpoint file
+     * @param checkpoint_millis milliseconds between forcing the log to disk
+     * @param resume whether to read back the previous checkpoint
+     * @param frontier receives every url of the checkpoint
+     * @param pages receives the recorded pages, or null to skip titles
+     * @throws IOException if the checkpoint cannot be read or created
+     */
+    CrawlLog(Path file, long checkpoint_millis, boolean resume, Frontier frontier, Map<String, String> pages) throws IOException {
+        this.base = file;
+        this.log = Path.of(file + ".log");
+        this.merging = Path.of(file + ".log.1");
+        this.merged = Path.of(file + ".tmp");
+        if (resume) {
+            // A compaction was interrupted, finish it before reading back
+            if (Files.exists(merging)) merge();
+            else if (Files.exists(merged)) Files.move(merged, base, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replay(base, frontier, pages);
+            replay(log, frontier, pages);
+            base_records = count(base);
+            records = count(log);
+        }
+        else {
+            Files.deleteIfExists(merging);
+            Files.deleteIfExists(merged);
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(base);
+        }
+        open();
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(Crawler.daemon("crawl-checkpoint"));
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpoint_millis, checkpoint_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the restored urls that were claimed and not visited, by depth, in the order they were claimed
+     */
+    Map<String, Integer> pending() {
+        return pending;
+    }
+
+    /**
+     * @return the number of restored pages
+     */
+    int parsed() {
+        return parsed;
+    }
+
+    /**
+     * @return whether a previous checkpoint was read back
+     */
+    boolean resumed() {
+        return base_records + records > 0;
+    }
+
+    /**
+     * Logs a claimed url.
+     *
+     * @param url the claimed url
+     * @param depth depth of the url
+     */
+    synchronized void claimed(String url, int depth) {
+        append("C\t" + depth + '\t' + url);
+    }
+
+    /**
+     * Logs a visited url, after the links of its page have been claimed.
+     *
+     * @param url the visited url
+     * @param title title of the recorded page, or null if no page was recorded
+     */
+    synchronized void visited(String url, String title) {
+        append(title == null ? "D\t" + url : "P\t" + url + '\t' + escape(title));
+    }
+
+    /**
+     * Forces the log to disk and stops checkpointing, later lines are ignored.
+     */
+    void close() {
+        checkpointer.shutdownNow();
+        synchronized (this) {
+            if (writer == null) return;
+            try {
+                writer.flush();
+                channel.force(false);
+                writer.close();
+            }
+            catch (IOException ignored) {}
+            writer = null;
+        }
+    }
+
+    // Appends a line, lock must be held
+    private void append(String line) {
+        if (writer == null) return;
+        try {
+            writer.write(line);
+            writer.newLine();
+            records++;
+        }
+        // A line that cannot be written only costs fetching its page again on resume
+        catch (IOException ignored) {}
+    }
+
+    // Forces the log to disk, then compacts it once it has grown as large as the base
+    private void checkpoint() {
+        final boolean compact;
+        synchronized (this) {
+            if (writer == null) return;
+            try {
+                writer.flush();
+                channel.force(false);
+            }
+            catch (IOException ignored) {}
+            // A log or base left over by a failed merge is finished on resume instead
+            compact = records >= Math.max(min_compact_records, base_records) && !Files.exists(merging) && !Files.exists(merged);
+            if (compact) {
+                try {
+                    // Later lines go to a new log while the old one is merged
+                    writer.close();
+                    Files.move(log, merging, StandardCopyOption.REPLACE_EXISTING);
+                    open();
+                    records = 0;
+                }
+                catch (IOException failed) {
+                    writer = null;
+                    return;
+                }
+            }
+        }
+        if (!compact) return;
+        try {
+            merge();
+        }
+        // The merge is retried on the next resume
+        catch (IOException ignored) {}
+    }
+
+    // Opens log for appending
+    private void open() throws IOException {
+        channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    // Merges base and the log at merging into a new base holding one line per url
+    private void merge() throws IOException {
+        final var claimed = new LinkedHashMap<String, String>(); // Claimed urls not visited, by depth
+        var written = 0L;
+        try (var channel = FileChannel.open(merged, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             var out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 1 << 16)) {
+            for (var file : new Path[]{base, merging}) {
+                if (!Files.exists(file)) continue;
+                try (var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        final var fields = line.split("\t", 3);
+                        if (fields[0].equals("C") && fields.length == 3) claimed.putIfAbsent(fields[2], fields[1]);
+                        else if ((fields[0].equals("P") && fields.length == 3) || (fields[0].equals("D") && fields.length == 2)) {
+                            // Visited urls are written out straight away, their claim is no longer needed
+                            claimed.remove(fields[1]);
+                            out.write(line);
+                            out.newLine();
+                            written++;
+                        }
+                    }
+                }
+            }
+            for (var url : claimed.entrySet()) {
+                out.write("C\t" + url.getValue() + '\t' + url.getKey());
+                out.newLine();
+                written++;
+            }
+            out.flush();
+            channel.force(false);
+        }
+        // Once the merged log is gone the new base is complete, and replaces the old one even after a crash
+        Files.delete(merging);
+        Files.move(merged, base, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            base_records = written;
+        }
+    }
+
+    // Restores the urls of a checkpoint file, skipping a torn last line
+    private void replay(Path file, Frontier frontier, Map<String, String> pages) throws IOException {
+        if (!Files.exists(file)) return;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final var fields = line.split("\t", 3);
+                switch (fields[0]) {
+                    case "C":
+                        if (fields.length != 3) break;
+                        try {
+                            // A url restored by an earlier line was claimed or visited already
+                            if (frontier.restore(fields[2])) pending.put(fields[2], Integer.valueOf(fields[1]));
+                        }
+                        catch (NumberFormatException ignored) {}
+                        break;
+                    case "P":
+                        if (fields.length != 3) break;
+                        frontier.restore(fields[1]);
+                        pending.remove(fields[1]);
+                        if (pages != null) pages.put(fields[1], unescape(fields[2]));
+                        parsed++;
+                        break;
+                    case "D":
+                        if (fields.length != 2) break;
+                        frontier.restore(fields[1]);
+                        pending.remove(fields[1]);
+                        break;
+                    default: break;
+                }
+            }
+        }
+    }
+
+    private static long count(Path file) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.count();
+        }
+    }
+
+    // Keeps a title on a single line
+    private static String escape(String title) {
+        return title.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String title) {
+        if (title.indexOf('\\') < 0) return title;
+        final var unescaped = new StringBuilder(title.length());
+        for (var i = 0; i < title.length(); i++) {
+            final var c = title.charAt(i);
+            if (c != '\\' || i + 1 == title.length()) {
+                unescaped.append(c);
+                continue;
+            }
+            final var next = title.charAt(++i);
+            unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        }
+        return unescaped.toString();
+    }
+}
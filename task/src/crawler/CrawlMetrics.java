@@ -0,0 +1,407 @@
+package crawler;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Counters of a running crawl. Workers only increment LongAdders and lock free
+ * histograms, which do not contend across threads; front ends poll a Snapshot at
+ * their own rate, so the cost of showing progress does not grow with the number
+ * of pages crawled per second. The latest crawl is also published over JMX as
+ * crawler:type=Crawler.
+ */
+class CrawlMetrics {
+
+    static final String object_name = "crawler:type=Crawler"; // Name of the MXBean of the latest crawl
+
+    /**
+     * Format of the periodic metrics dump.
+     */
+    enum Format {
+        TEXT, // A table of the stages, durations in milliseconds
+        JSON  // A single line JSON object, durations in milliseconds
+    }
+
+    /**
+     * A timed step of handling a url.
+     */
+    enum Stage {
+        CONNECT, // Resolving, connecting and sending the request until the response headers arrive
+        DOWNLOAD, // Reading the response body
+        FETCH, // Connect and download together, the whole request
+        PARSE, // Reading the title and hrefs from the body
+        EXTRACT, // Validating, claiming and submitting the hrefs of a page
+        VALIDATE, // Resolving and normalizing a single href
+        QUEUE_WAIT, // Waiting for a worker once ready to run
+        UPLOAD // Writing a batch of pages to the database
+    }
+
+    /**
+     * An exception that is handled without stopping the crawl.
+     */
+    enum Failure {
+        IO, // A page could not be fetched
+        NOT_HTML, // A response was refused on its headers as it was not an html page
+        TOO_LARGE, // A body was refused or cut off as it was larger than the maximum body size
+        REJECTED, // Work was refused because the queue was full or the crawl stopped
+        INDEX_OUT_OF_BOUNDS, // A malformed href
+        DATABASE, // A database write failed
+        PEER // A batch of links was lost as its node of a distributed crawl could not be reached
+    }
+
+    /**
+     * The state of a crawl at one point in time.
+     */
+    static final class Snapshot {
+        final long parsed_pages; // Pages recorded
+        final long fetches_avoided; // Fetches skipped because the url was already claimed
+        final int queued; // Urls waiting to be fetched
+        final long dropped; // Links dropped for lack of room or by robots.txt
+        final boolean database_updated; // Whether a database write has reported progress yet
+        final int database_processed; // Pages written by the running or last database write
+        final int database_total; // Pages to write
+        final int database_added; // Pages the database did not hold yet
+        final int database_redundant; // Pages the database already held
+        final Map<Stage, LatencyHistogram.Summary> stages; // Durations of every stage
+        final Map<Failure, Long> failures; // Handled exceptions by kind
+        final long not_modified; // Pages a re-crawl found not modified by a conditional fetch
+        final long unchanged; // Pages a re-crawl fetched in full and found to have the same content
+        final long bytes_saved; // Bytes of the not modified pages that were not downloaded again
+        final long time_saved; // Estimated nanoseconds of downloading and parsing saved by a re-crawl
+        final long links_sent; // Links handed to the other nodes of a distributed crawl
+        final long links_received; // Links handed over by the other nodes of a distributed crawl
+
+        private Snapshot(long parsed_pages, long fetches_avoided, int queued, long dropped, boolean database_updated,
+                         int database_processed, int database_total, int database_added, int database_redundant,
+                         Map<Stage, LatencyHistogram.Summary> stages, Map<Failure, Long> failures,
+                         long not_modified, long unchanged, long bytes_saved, long links_sent, long links_received) {
+            this.parsed_pages = parsed_pages;
+            this.fetches_avoided = fetches_avoided;
+            this.queued = queued;
+            this.dropped = dropped;
+            this.database_updated = database_updated;
+            this.database_processed = database_processed;
+            this.database_total = database_total;
+            this.database_added = database_added;
+            this.database_redundant = database_redundant;
+            this.stages = stages;
+            this.failures = failures;
+            this.not_modified = not_modified;
+            this.unchanged = unchanged;
+            this.bytes_saved = bytes_saved;
+            // Every page skipped would have taken as long as the pages that were not
+            this.time_saved = not_modified * stages.get(Stage.DOWNLOAD).mean
+                    + (not_modified + unchanged) * (stages.get(Stage.PARSE).mean + stages.get(Stage.EXTRACT).mean);
+            this.links_sent = links_sent;
+            this.links_received = links_received;
+        }
+
+        /**
+         * @return the snapshot as lines of text, durations in milliseconds
+         */
+        String toText() {
+            final var text = new StringBuilder(1024);
+            text.append(String.format(Locale.ROOT, "%s  pages %d  skipped %d  queued %d  dropped %d  database %d/%d added %d redundant %d%n",
+                    Instant.now(), parsed_pages, fetches_avoided, queued, dropped, database_processed, database_total, database_added, database_redundant));
+            text.append(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s%n", "stage", "count", "mean", "p50", "p90", "p99", "max"));
+            for (var stage : stages.entrySet()) {
+                final var summary = stage.getValue();
+                text.append(String.format(Locale.ROOT, "%-10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name(stage.getKey()),
+                        summary.count, millis(summary.mean), millis(summary.p50), millis(summary.p90), millis(summary.p99), millis(summary.max)));
+            }
+            text.append("failures");
+            for (var failure : failures.entrySet()) text.append(' ').append(name(failure.getKey())).append(' ').append(failure.getValue());
+            text.append(System.lineSeparator());
+            if (not_modified + unchanged > 0) {
+                text.append(String.format(Locale.ROOT, "recrawl  not modified %d  unchanged %d  saved %d bytes and about %.3f s%n",
+                        not_modified, unchanged, bytes_saved, time_saved / 1e9));
+            }
+            if (links_sent + links_received > 0) {
+                text.append(String.format(Locale.ROOT, "cluster  links sent %d  received %d%n", links_sent, links_received));
+            }
+            return text.toString();
+        }
+
+        /**
+         * @return the snapshot as a single line JSON object, durations in milliseconds
+         */
+        String toJson() {
+            final var json = new StringBuilder(1024);
+            json.append("{\"time\":").append(System.currentTimeMillis())
+                    .append(",\"parsed_pages\":").append(parsed_pages)
+                    .append(",\"fetches_avoided\":").append(fetches_avoided)
+                    .append(",\"queued\":").append(queued)
+                    .append(",\"dropped\":").append(dropped)
+                    .append(",\"database\":{\"processed\":").append(database_processed)
+                    .append(",\"total\":").append(database_total)
+                    .append(",\"added\":").append(database_added)
+                    .append(",\"redundant\":").append(database_redundant)
+                    .append("},\"stages\":{");
+            var first = true;
+            for (var stage : stages.entrySet()) {
+                final var summary = stage.getValue();
+                if (!first) json.append(',');
+                first = false;
+                json.append('"').append(name(stage.getKey())).append("\":").append(String.format(Locale.ROOT,
+                        "{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+                        summary.count, millis(summary.mean), millis(summary.p50), millis(summary.p90), millis(summary.p99), millis(summary.max)));
+            }
+            json.append("},\"failures\":{");
+            first = true;
+            for (var failure : failures.entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                json.append('"').append(name(failure.getKey())).append("\":").append(failure.getValue());
+            }
+            return json.append("},\"recrawl\":{\"not_modified\":").append(not_modified)
+                    .append(",\"unchanged\":").append(unchanged)
+                    .append(",\"bytes_saved\":").append(bytes_saved)
+                    .append(",\"time_saved\":").append(String.format(Locale.ROOT, "%.3f", millis(time_saved)))
+                    .append("},\"cluster\":{\"links_sent\":").append(links_sent)
+                    .append(",\"links_received\":").append(links_received)
+                    .append("}}").toString();
+        }
+
+        private static String name(Enum<?> key) {
+            return key.name().toLowerCase(Locale.ROOT);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    final LongAdder parsed_pages = new LongAdder(); // Pages recorded
+    final LongAdder not_modified = new LongAdder(); // Pages a conditional fetch found not modified
+    final LongAdder unchanged = new LongAdder(); // Pages fetched in full with the same content as before
+    final LongAdder bytes_saved = new LongAdder(); // Bytes of the not modified pages
+    final LongAdder links_sent = new LongAdder(); // Links handed to other nodes
+    final LongAdder links_received = new LongAdder(); // Links handed over by other nodes
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Failure, LongAdder> failures = new EnumMap<>(Failure.class);
+
+    // Totals of the database writes, only ever set by the single upload or sink thread
+    private volatile boolean database_updated = false;
+    private volatile int database_processed = 0;
+    private volatile int database_total = 0;
+    private volatile int database_added = 0;
+    private volatile int database_redundant = 0;
+
+    // Constructs CrawlMetrics with every counter at 0
+    CrawlMetrics() {
+        for (var stage : Stage.values()) stages.put(stage, new LatencyHistogram());
+        for (var failure : Failure.values()) failures.put(failure, new LongAdder());
+    }
+
+    /**
+     * Records the duration of a stage that started at the given time.
+     *
+     * @param stage the stage
+     * @param started System.nanoTime() when the stage started
+     * @return the current System.nanoTime(), the start of a following stage
+     */
+    long record(Stage stage, long started) {
+        final var now = System.nanoTime();
+        stages.get(stage).record(now - started);
+        return now;
+    }
+
+    /**
+     * Records the duration of a stage that was not spent in one stretch.
+     *
+     * @param stage the stage
+     * @param nanos nanoseconds spent in the stage
+     */
+    void recordNanos(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    /**
+     * Counts a handled exception.
+     *
+     * @param failure kind of the exception
+     */
+    void fail(Failure failure) {
+        failures.get(failure).increment();
+    }
+
+    /**
+     * Counts handled exceptions of one kind.
+     *
+     * @param failure kind of the exceptions
+     * @param count number of exceptions
+     */
+    void fail(Failure failure, int count) {
+        failures.get(failure).add(count);
+    }
+
+    /**
+     * Records the totals of a database write after a batch.
+     *
+     * @param processed pages written so far
+     * @param total pages to write
+     * @param added pages the database did not hold yet
+     * @param redundant pages the database already held
+     */
+    void databaseUpdated(int processed, int total, int added, int redundant) {
+        database_processed = processed;
+        database_total = total;
+        database_added = added;
+        database_redundant = redundant;
+        database_updated = true;
+    }
+
+    /**
+     * Publishes the snapshots of a crawl over JMX, replacing the crawl published before.
+     *
+     * @param snapshots takes a snapshot of the crawl
+     */
+    static synchronized void register(Supplier<Snapshot> snapshots) {
+        try {
+            final var server = ManagementFactory.getPlatformMBeanServer();
+            final var name = new ObjectName(object_name);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(new StandardMBean(new Bean(snapshots), CrawlMetricsMXBean.class, true), name);
+        }
+        // Monitoring is optional, the crawl runs the same without it
+        catch (JMException ignored) {}
+    }
+
+    /**
+     * @param fetches_avoided fetches skipped by the frontier
+     * @param queued urls waiting to be fetched
+     * @param dropped links dropped by the queues
+     * @return the counters together with the given gauges
+     */
+    Snapshot snapshot(long fetches_avoided, int queued, long dropped) {
+        final var stage_summaries = new EnumMap<Stage, LatencyHistogram.Summary>(Stage.class);
+        for (var stage : stages.entrySet()) stage_summaries.put(stage.getKey(), stage.getValue().summary());
+        final var failure_counts = new EnumMap<Failure, Long>(Failure.class);
+        for (var failure : failures.entrySet()) failure_counts.put(failure.getKey(), failure.getValue().sum());
+        return new Snapshot(parsed_pages.sum(), fetches_avoided, queued, dropped, database_updated,
+                database_processed, database_total, database_added, database_redundant, stage_summaries, failure_counts,
+                not_modified.sum(), unchanged.sum(), bytes_saved.sum(), links_sent.sum(), links_received.sum());
+    }
+
+    /**
+     * Answers the JMX attributes of a crawl, taking a new snapshot for each one.
+     */
+    private static final class Bean implements CrawlMetricsMXBean {
+
+        private final Supplier<Snapshot> snapshots;
+
+        private Bean(Supplier<Snapshot> snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public long getParsedPages() {
+            return snapshots.get().parsed_pages;
+        }
+
+        @Override
+        public long getFetchesAvoided() {
+            return snapshots.get().fetches_avoided;
+        }
+
+        @Override
+        public int getQueued() {
+            return snapshots.get().queued;
+        }
+
+        @Override
+        public long getDropped() {
+            return snapshots.get().dropped;
+        }
+
+        @Override
+        public long getPagesNotModified() {
+            return snapshots.get().not_modified;
+        }
+
+        @Override
+        public long getPagesUnchanged() {
+            return snapshots.get().unchanged;
+        }
+
+        @Override
+        public long getBytesSaved() {
+            return snapshots.get().bytes_saved;
+        }
+
+        @Override
+        public long getLinksSent() {
+            return snapshots.get().links_sent;
+        }
+
+        @Override
+        public long getLinksReceived() {
+            return snapshots.get().links_received;
+        }
+
+        @Override
+        public Map<String, Long> getFailures() {
+            final var failures = new LinkedHashMap<String, Long>();
+            for (var failure : snapshots.get().failures.entrySet()) failures.put(Snapshot.name(failure.getKey()), failure.getValue());
+            return failures;
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            final var counts = new LinkedHashMap<String, Long>();
+            for (var stage : snapshots.get().stages.entrySet()) counts.put(Snapshot.name(stage.getKey()), stage.getValue().count);
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getStageMeanMillis() {
+            return stageMillis(summary -> summary.mean);
+        }
+
+        @Override
+        public Map<String, Double> getStageP50Millis() {
+            return stageMillis(summary -> summary.p50);
+        }
+
+        @Override
+        public Map<String, Double> getStageP90Millis() {
+            return stageMillis(summary -> summary.p90);
+        }
+
+        @Override
+        public Map<String, Double> getStageP99Millis() {
+            return stageMillis(summary -> summary.p99);
+        }
+
+        @Override
+        public Map<String, Double> getStageMaxMillis() {
+            return stageMillis(summary -> summary.max);
+        }
+
+        @Override
+        public String getText() {
+            return snapshots.get().toText();
+        }
+
+        @Override
+        public String getJson() {
+            return snapshots.get().toJson();
+        }
+
+        private Map<String, Double> stageMillis(Function<LatencyHistogram.Summary, Long> nanos) {
+            final var millis = new LinkedHashMap<String, Double>();
+            for (var stage : snapshots.get().stages.entrySet()) millis.put(Snapshot.name(stage.getKey()), Snapshot.millis(nanos.apply(stage.getValue())));
+            return millis;
+        }
+    }
+}
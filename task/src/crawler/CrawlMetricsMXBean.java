@@ -0,0 +1,49 @@
+package crawler;
+
+import java.util.Map;
+
+/**
+ * The counters and stage timings of the latest crawl as published over JMX.
+ * Stages and failures are keyed by their lower case names, durations are in
+ * milliseconds.
+ */
+public interface CrawlMetricsMXBean {
+
+    long getParsedPages();
+
+    long getFetchesAvoided();
+
+    int getQueued();
+
+    long getDropped();
+
+    long getPagesNotModified();
+
+    long getPagesUnchanged();
+
+    long getBytesSaved();
+
+    long getLinksSent();
+
+    long getLinksReceived();
+
+    Map<String, Long> getFailures();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP50Millis();
+
+    Map<String, Double> getStageP90Millis();
+
+    Map<String, Double> getStageP99Millis();
+
+    Map<String, Double> getStageMaxMillis();
+
+    // The snapshot as printed by the text dump
+    String getText();
+
+    // The snapshot as printed by the JSON dump
+    String getJson();
+}
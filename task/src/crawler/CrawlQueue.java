@@ -0,0 +1,280 @@
+package crawler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * The work queue of the crawl workers. At most capacity Tasks are held in memory,
+ * ordered by a pluggable priority such as depth for a breadth first crawl. Once
+ * memory is full further Tasks are spilled to a file and read back as memory
+ * drains. Producers never wait for room, as they are the workers that drain the
+ * queue, so a Task is only rejected if the spill file cannot be written. Spilled
+ * Tasks that cannot be read back are reported to lost, as they will never run.
+ * Spilled Tasks are read back in the order they were spilled, so the priority
+ * only orders the Tasks held in memory.
+ */
+class CrawlQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final int capacity; // Tasks held in memory
+    private final PriorityQueue<Runnable> memory; // Tasks in priority order
+    private final Function<Runnable, String> encode; // Writes a Task as a single line for the spill file
+    private final Function<String, Runnable> decode; // Reads a Task back from the spill file
+    private final SpillFile spill_file; // Overflow of memory
+    private final IntConsumer lost; // Receives the number of spilled Tasks that could not be read back
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition not_empty = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong(); // Tasks rejected as they could not be spilled
+
+    // Constructs a CrawlQueue, spilling to a temporary file in spill_directory
+    CrawlQueue(int capacity, Comparator<Runnable> priority, Function<Runnable, String> encode,
+               Function<String, Runnable> decode, Path spill_directory, IntConsumer lost) throws IOException {
+        if (capacity < 1) throw new IllegalArgumentException("capacity invalid");
+        this.capacity = capacity;
+        this.memory = new PriorityQueue<>(Math.min(capacity, 1024), priority);
+        this.encode = encode;
+        this.decode = decode;
+        this.spill_file = new SpillFile(spill_directory, "crawl-queue");
+        this.lost = lost;
+    }
+
+    /**
+     * @return the number of Tasks rejected because they could not be spilled
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        Objects.requireNonNull(task);
+        lock.lock();
+        try {
+            return enqueue(task);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a Task without waiting, as the queue never waits for room.
+     */
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    /**
+     * Queues the Tasks of a page together, taking the lock once rather than once per
+     * Task. The first Task that can be neither held nor spilled is rejected along
+     * with every Task after it.
+     *
+     * @param tasks the Tasks to queue
+     * @return the number of leading Tasks queued, the others were rejected
+     */
+    int offerAll(List<? extends Runnable> tasks) {
+        var queued = 0;
+        lock.lock();
+        try {
+            for (var task : tasks) {
+                if (!enqueue(Objects.requireNonNull(task))) {
+                    dropped.addAndGet(tasks.size() - queued - 1);
+                    break;
+                }
+                queued++;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return queued;
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        var remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty() && spilled() == 0) {
+                if (remaining <= 0) return null;
+                remaining = not_empty.awaitNanos(remaining);
+            }
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty() && spilled() == 0) not_empty.await();
+            return dequeue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            if (memory.isEmpty()) refill();
+            return memory.peek();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + spilled();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> tasks) {
+        return drainTo(tasks, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> tasks, int max) {
+        lock.lock();
+        try {
+            var drained = 0;
+            Runnable task;
+            while (drained < max && (task = dequeue()) != null) {
+                tasks.add(task);
+                drained++;
+            }
+            return drained;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the Tasks held in memory, spilled Tasks are not included.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            return new ArrayList<>(memory).iterator();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            return memory.remove(task);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every queued Task and deletes the spill file.
+     */
+    void close() {
+        lock.lock();
+        try {
+            memory.clear();
+            spill_file.delete();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues a Task, spilling it once memory is full, lock must be held
+    private boolean enqueue(Runnable task) {
+        // Keep spilled Tasks ahead of new ones of the same priority by reading them back first
+        if ((memory.size() >= capacity || spilled() > 0) && spill(task)) return true;
+        if (memory.size() >= capacity) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        memory.add(task);
+        not_empty.signal();
+        return true;
+    }
+
+    // Removes the next Task, reading spilled Tasks back once memory is empty, lock must be held
+    private Runnable dequeue() {
+        if (memory.isEmpty()) refill();
+        return memory.poll();
+    }
+
+    // Returns the number of Tasks in the spill file, lock must be held
+    private int spilled() {
+        return spill_file.size();
+    }
+
+    // Appends a Task to the spill file, lock must be held
+    private boolean spill(Runnable task) {
+        if (!spill_file.append(encode.apply(task))) return false;
+        not_empty.signal();
+        return true;
+    }
+
+    // Reads up to half of capacity spilled Tasks back into memory, lock must be held
+    private void refill() {
+        final var spilled = spilled();
+        final var count = Math.min(spilled, Math.max(1, capacity / 2));
+        var read = 0;
+        try {
+            for (; read < count; read++) memory.add(decode.apply(spill_file.next()));
+        }
+        catch (IOException failed) {
+            // The remaining spilled Tasks cannot be read back
+            dropped.addAndGet(spilled - read);
+            lost.accept(spilled - read);
+        }
+    }
+}
@@ -0,0 +1,740 @@
+package crawler;
+
+import org.jsoup.Jsoup;
+import org.jsoup.UncheckedIOException;
+import org.jsoup.UnsupportedMimeTypeException;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The crawl engine, independent of any user interface. A Crawler runs a single
+ * crawl described by its CrawlConfig and reports progress to a Listener, which
+ * is how both the Swing UI and the headless entry point observe it.
+ */
+class Crawler {
+
+    private static final String user_agent = "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:63.0) Gecko/20100101 Firefox/63.0";
+
+    /**
+     * Receives the events of a crawl. Methods are called from crawl threads, progress
+     * is polled with snapshot() instead so that it costs nothing per page.
+     */
+    interface Listener {
+        // Called after each batch written to the database, by an upload or the streaming sink
+        default void databaseUpdated(int processed, int total, int added, int redundant) {}
+
+        // Called once the crawl has completed, been stopped or hit its time limit
+        default void finished() {}
+    }
+
+    private final CrawlConfig config; // Settings of this crawl
+    private final int max_depth; // Deepest url crawled, Integer.MAX_VALUE for unlimited
+    private final Listener listener; // Receives progress
+    private final ThreadPoolExecutor workers; // Runs the Tasks, or only parses pages with the async engine
+    private final CrawlQueue queue; // Bounded, prioritized work queue of the blocking engine, null with the async engine
+    private final HostScheduler scheduler; // Releases urls host by host, null without politeness
+    private final AsyncFetcher fetcher; // Sends requests with the async engine, null with the blocking engine
+    private final AtomicInteger outstanding = new AtomicInteger(); // Urls submitted and not yet handled, the crawl is complete at 0
+    private final ScheduledExecutorService limiter; // Stops the crawl at the time limit, null without one
+    private final ScheduledExecutorService reporter; // Dumps the metrics every metrics interval, null without one
+    private final CrawlLog log; // Checkpoint of the crawl, null without one
+    private final Cluster cluster; // Hands links to the nodes owning their hosts in a distributed crawl, null otherwise
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    // Initialize HashMap for maintaining concurrency
+    private final ConcurrentHashMap<String, String> crawled_pages = new ConcurrentHashMap<>();
+    // Urls claimed for fetching, checked before any Task is submitted
+    private final Frontier frontier;
+    // Rows of the previous crawl submitted by a re-crawl keyed by url, removed as they are fetched again, null otherwise
+    private final Map<String, PageRecord> previous;
+    // Validators of the pages recorded by a re-crawl keyed by url, null otherwise or when streaming
+    private final ConcurrentHashMap<String, PageRecord> records;
+    // Uploads crawled_pages to the database apart from the crawl workers
+    private final PageUploader uploader;
+    // Receives pages while the crawl is running when streaming, null otherwise
+    private final PageSink sink;
+    // Counters and stage timings polled by the front ends, JMX and the metrics dump
+    private final CrawlMetrics metrics = new CrawlMetrics();
+    // Resolves and normalizes every href before it is claimed
+    private final UrlCanonicalizer canonicalizer;
+    // Reads titles and hrefs from fetched pages
+    private final LinkExtractor extractor;
+
+    /**
+     * Constructs a Crawler that has not started yet.
+     *
+     * @param config settings of the crawl
+     * @param listener receives progress
+     * @throws IOException if the spill file or checkpoint cannot be created, or the checkpoint or the
+     *                     pages of a re-crawl cannot be read
+     */
+    Crawler(CrawlConfig config, Listener listener) throws IOException {
+        config.validate();
+        this.config = config;
+        this.max_depth = config.max_depth == null ? Integer.MAX_VALUE : config.max_depth;
+        this.listener = listener;
+        this.frontier = new Frontier(config.seen_set, config.expected_urls);
+        this.canonicalizer = new UrlCanonicalizer(config.canonical_rules, config.tracking_params);
+        if (config.engine == CrawlConfig.Engine.BLOCKING) {
+            // Tasks are only ever queued through execute, so the queue holds nothing but Tasks
+            final Comparator<Runnable> shallowest = Comparator.comparingInt(task -> ((Task)task).depth);
+            this.queue = new CrawlQueue(config.queue_capacity,
+                    config.priority == CrawlConfig.Priority.DFS ? shallowest.reversed() : shallowest,
+                    task -> ((Task)task).depth + "\t" + ((Task)task).url,
+                    line -> new Task(line.substring(line.indexOf('\t') + 1), Integer.parseInt(line, 0, line.indexOf('\t'), 10)),
+                    Path.of(config.spill_directory), this::complete);
+            this.workers = new ThreadPoolExecutor(config.worker_count, config.worker_count, 0L, TimeUnit.MILLISECONDS, queue);
+        }
+        else {
+            this.queue = null;
+            this.workers = (ThreadPoolExecutor)Executors.newFixedThreadPool(config.worker_count);
+        }
+        this.fetcher = config.engine == CrawlConfig.Engine.ASYNC ? new AsyncFetcher(config.max_in_flight, workers, user_agent,
+                config.max_body_size, Duration.ofSeconds(config.fetch_timeout), metrics) : null;
+        this.scheduler = config.politeness
+                ? new HostScheduler(config.host_concurrency, config.host_delay, config.robots, user_agent, config.queue_capacity,
+                        Path.of(config.spill_directory), this::fetch, this::complete, frontier::unclaim)
+                : null;
+        // Let Jsoup's HttpURLConnection keep a connection alive for every concurrent request to a host,
+        // only effective before the first connection of the JVM and unless set explicitly
+        if (config.politeness && System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, config.host_concurrency)));
+        }
+        this.limiter = config.time_limit > 0 ? Executors.newSingleThreadScheduledExecutor(daemon("crawl-limiter")) : null;
+        this.reporter = config.metrics_interval > 0 ? Executors.newSingleThreadScheduledExecutor(daemon("crawl-metrics")) : null;
+        this.uploader = new PageUploader(config.database_url, config.database_user, config.database_password, config.batch_size, metrics, config.recrawl);
+        if (config.recrawl) {
+            try {
+                if (config.migrate) uploader.migrate();
+                uploader.checkColumns();
+            }
+            catch (SQLException failed) {
+                throw new IOException("pages table cannot be re-crawled", failed);
+            }
+        }
+        this.previous = config.recrawl ? new ConcurrentHashMap<>() : null;
+        this.records = config.recrawl && !config.stream ? new ConcurrentHashMap<>() : null;
+        this.sink = config.stream ? new PageSink(uploader, 10 * config.batch_size, config.batch_size, 1000L, this::databaseUpdated, metrics) : null;
+        this.extractor = new LinkExtractor(config.extractor, true);
+        this.cluster = config.nodes == null ? null : new Cluster(config.nodes, config.node, 500, 50L, TimeUnit.SECONDS.toMillis(config.node_timeout),
+                this::receive, () -> outstanding.get() == 1, this::complete, this::halt, metrics);
+        this.log = config.checkpoint == null ? null : new CrawlLog(Path.of(config.checkpoint), 1000L * config.checkpoint_interval,
+                config.resume, frontier, config.stream ? null : crawled_pages);
+        metrics.parsed_pages.add(log == null ? 0 : config.stream ? log.parsed() : crawled_pages.size());
+    }
+
+    // Creates daemon threads so helper threads never keep the JVM alive
+    static ThreadFactory daemon(String name) {
+        return runnable -> {
+            final var thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts the crawl from the start url.
+     *
+     * @throws IOException if the start url cannot be connected to, or the address of this node cannot be listened on
+     * @throws IllegalArgumentException if the start url is not a crawlable url
+     */
+    void start() throws IOException {
+        // Quickly test to see if the input is a website
+        new URL(config.start_url).openConnection().connect();
+        final var start_url = canonicalizer.canonicalize(config.start_url);
+        if (start_url == null) throw new IllegalArgumentException("start url invalid");
+        if (sink != null) sink.start();
+        if (limiter != null) limiter.schedule(this::stop, config.time_limit, TimeUnit.SECONDS);
+        if (reporter != null) reporter.scheduleAtFixedRate(this::dump, config.metrics_interval, config.metrics_interval, TimeUnit.SECONDS);
+        CrawlMetrics.register(this::snapshot);
+        workers.prestartAllCoreThreads();
+        // A distributed crawl is held open until the coordinator finds every node idle
+        if (cluster != null) outstanding.incrementAndGet();
+        // The checkpoint of a crawl that completed has no pending urls, and finishes straight away
+        if (log != null && log.resumed()) resubmit(log.pending());
+        // A re-crawl revisits every page of the previous crawl, as the links of unchanged pages are not read again
+        else if (previous != null) reseed(start_url);
+        else if (cluster == null || cluster.owns(start_url)) {
+            frontier.claim(start_url);
+            if (log != null) log.claimed(start_url, 0);
+            submit(start_url, 0);
+        }
+        // Only joined once the start url has been submitted, so that this node is never found idle before
+        if (cluster != null) cluster.start();
+    }
+
+    // Hands urls by depth to the fetch engine off the calling thread, as a full queue may hold each url
+    // back. The crawl is held open until every url has been submitted.
+    private void resubmit(Map<String, Integer> urls) {
+        outstanding.incrementAndGet();
+        CompletableFuture.runAsync(() -> {
+            for (var url : urls.entrySet()) {
+                try {
+                    submit(url.getKey(), url.getValue());
+                }
+                catch (RejectedExecutionException rejected) {
+                    metrics.fail(CrawlMetrics.Failure.REJECTED);
+                }
+            }
+            urls.clear();
+            complete();
+        });
+    }
+
+    // Submits the start url and the pages of the previous crawl within the maximum depth off the calling thread,
+    // shallowest first, leaving out those another node of a distributed crawl owns. Rows are only read while no
+    // more than queue_capacity urls are queued, so previous holds little more than the rows waiting to be fetched
+    // rather than the whole table. The crawl is held open until every row has been read.
+    private void reseed(String start_url) {
+        outstanding.incrementAndGet();
+        CompletableFuture.runAsync(() -> {
+            final var start = new boolean[]{cluster == null || cluster.owns(start_url)}; // Whether the start url is still to be submitted
+            try {
+                uploader.load(max_depth, page -> {
+                    // The start url follows the rows at depth 0, so that its own row is submitted with it
+                    if (start[0] && page.depth > 0) {
+                        start[0] = false;
+                        seed(start_url, 0, null);
+                    }
+                    if (cluster != null && !cluster.owns(page.url)) return true;
+                    while (queued() > config.queue_capacity && !finished.get()) {
+                        try {
+                            Thread.sleep(10L);
+                        }
+                        catch (InterruptedException interrupted) {
+                            return false;
+                        }
+                    }
+                    if (finished.get()) return false;
+                    if (page.url.equals(start_url)) start[0] = false;
+                    seed(page.url, page.depth, page);
+                    return true;
+                });
+            }
+            // Counted already, the crawl goes on from the pages submitted so far
+            catch (SQLException failed) {}
+            if (start[0]) seed(start_url, 0, null);
+            complete();
+        });
+    }
+
+    // Claims and submits a url of a re-crawl along with its row of the previous crawl, if any
+    private void seed(String url, int depth, PageRecord page) {
+        if (!frontier.restore(url)) return;
+        if (page != null) previous.put(url, page);
+        if (log != null) log.claimed(url, depth);
+        try {
+            submit(url, depth);
+        }
+        catch (RejectedExecutionException rejected) {
+            previous.remove(url);
+            metrics.fail(CrawlMetrics.Failure.REJECTED);
+        }
+    }
+
+    /**
+     * Stops the crawl, abandoning queued Tasks and interrupting running ones. Stopping
+     * any node of a distributed crawl stops every node.
+     */
+    void stop() {
+        if (cluster != null) cluster.stopAll();
+        halt();
+    }
+
+    // Stops the crawl on this node
+    private void halt() {
+        // Drop the queues first so shutdownNow does not read every spilled Task back
+        if (scheduler != null) scheduler.shutdown();
+        if (queue != null) queue.close();
+        if (fetcher != null) fetcher.shutdown();
+        workers.shutdownNow();
+        finish();
+    }
+
+    /**
+     * @return whether the crawl has not finished or a worker stopped by stop() has not returned yet
+     */
+    boolean isRunning() {
+        return !finished.get() || !workers.isTerminated();
+    }
+
+    /**
+     * @return the number of pages recorded so far
+     */
+    int parsedPages() {
+        return (int)metrics.parsed_pages.sum();
+    }
+
+    /**
+     * @return the number of fetches skipped because the url was already claimed
+     */
+    long fetchesAvoided() {
+        return frontier.fetchesAvoided();
+    }
+
+    /**
+     * @return the number of urls waiting to be fetched, and with the async engine those being fetched
+     */
+    int queued() {
+        // Less the hold of a distributed crawl
+        if (fetcher != null) return Math.max(0, outstanding.get() - (cluster != null ? 1 : 0));
+        return queue.size() + (scheduler != null ? scheduler.pending() : 0);
+    }
+
+    /**
+     * @return why a distributed crawl failed, as a node could not be reached, null unless it did
+     */
+    String failure() {
+        return cluster != null ? cluster.failure() : null;
+    }
+
+    /**
+     * @return the number of links dropped because the queue was full or robots.txt disallowed them
+     */
+    long droppedLinks() {
+        return (queue != null ? queue.dropped() : 0) + (scheduler != null ? scheduler.dropped() : 0);
+    }
+
+    /**
+     * @return the crawled pages keyed by url with their titles as values, empty when streaming
+     */
+    Map<String, String> pages() {
+        return crawled_pages;
+    }
+
+    /**
+     * Uploads the crawled pages to the database on the upload thread.
+     *
+     * @return the pending upload
+     * @throws IllegalArgumentException if the database user or password is missing
+     */
+    Future<?> upload() {
+        config.validateDatabase();
+        // Start the polled totals over so the last write's totals are not shown for this one
+        metrics.databaseUpdated(0, crawled_pages.size(), 0, 0);
+        return uploader.upload(crawled_pages, records, this::databaseUpdated);
+    }
+
+    /**
+     * @return the progress of the crawl and of the last database write
+     */
+    CrawlMetrics.Snapshot snapshot() {
+        return metrics.snapshot(fetchesAvoided(), queued(), droppedLinks());
+    }
+
+    // Records the totals of a database write and passes them on to the listener
+    private void databaseUpdated(int processed, int total, int added, int redundant) {
+        metrics.databaseUpdated(processed, total, added, redundant);
+        listener.databaseUpdated(processed, total, added, redundant);
+    }
+
+    // Releases the crawl threads, flushes the sink, dumps the final metrics and notifies the listener once
+    // every worker has returned, so that the pages are complete when the listener hands them on
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) return;
+        workers.shutdown();
+        if (scheduler != null) scheduler.shutdown();
+        if (queue != null) queue.close();
+        if (limiter != null) limiter.shutdownNow();
+        if (reporter != null) reporter.shutdownNow();
+        if (log != null) log.close();
+        if (cluster != null) cluster.close();
+        CompletableFuture.runAsync(() -> {
+            try {
+                // Returns at once when the crawl completed, as the last worker is the one finishing it
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ignored) {}
+            if (sink != null) sink.close();
+            if (reporter != null) dump();
+            listener.finished();
+        });
+    }
+
+    // Writes a snapshot of the metrics to the metrics file, or to standard error without one
+    private synchronized void dump() {
+        final var snapshot = snapshot();
+        final var text = config.metrics_format == CrawlMetrics.Format.JSON ? snapshot.toJson() + System.lineSeparator() : snapshot.toText();
+        if (config.metrics_file == null) {
+            System.err.print(text);
+            return;
+        }
+        try {
+            Files.writeString(Path.of(config.metrics_file), text, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        // A dump that cannot be written is skipped, the next one is tried again
+        catch (IOException ignored) {}
+    }
+
+    /**
+     * Hands a claimed url to the fetch engine, through the HostScheduler when
+     * politeness is enabled. The url is outstanding until complete() is called for
+     * it: once it has been handled, or once the queues drop it.
+     *
+     * @param url the claimed url
+     * @param depth depth of the url
+     * @throws RejectedExecutionException if the work could not be executed or the queue is full
+     */
+    private void submit(String url, int depth) {
+        outstanding.incrementAndGet();
+        if (scheduler != null) {
+            scheduler.submit(url, depth);
+            return;
+        }
+        try {
+            fetch(url, depth);
+        }
+        catch (RejectedExecutionException rejected) {
+            frontier.unclaim(url);
+            complete();
+            throw rejected;
+        }
+    }
+
+    /**
+     * Starts fetching a url. The blocking engine runs a Task on a worker, the async
+     * engine sends the request without holding a thread and parses the response on
+     * a worker.
+     *
+     * @param url the url to fetch
+     * @param depth depth of the url
+     * @throws RejectedExecutionException if the work could not be executed or the queue is full
+     */
+    private void fetch(String url, int depth) {
+        if (fetcher == null) {
+            workers.execute(new Task(url, depth));
+            return;
+        }
+        final var title = new AtomicReference<String>(); // Of the page once recorded
+        final var last = previous(url);
+        fetcher.fetch(url, last, () -> {
+            if (scheduler != null) scheduler.started(url);
+        }, response -> {
+            if (response.status == 304) {
+                notModified(last);
+                return;
+            }
+            final var fetched = config.recrawl ? new PageRecord(url, null, depth, response.etag, response.last_modified,
+                    FingerprintSet.fingerprint(response.body), response.length) : null;
+            if (unchanged(last, fetched)) return;
+            final var started = System.nanoTime();
+            final var page = extractor.mode() == LinkExtractor.Mode.STREAMING
+                    ? extractor.extract(url, response.body, depth < max_depth)
+                    : extractor.extract(url, Jsoup.parse(response.body, url), depth < max_depth);
+            metrics.record(CrawlMetrics.Stage.PARSE, started);
+            title.set(record(url, page, depth, fetched));
+        }, () -> {
+            visited(url, title.get());
+            if (scheduler != null) scheduler.done(url);
+            complete();
+        });
+    }
+
+    // Marks a url as handled, after the urls of its page have been submitted, the crawl is
+    // complete once none are outstanding
+    private void complete() {
+        complete(1);
+    }
+
+    // Marks urls as handled or dropped
+    private void complete(int urls) {
+        if (outstanding.addAndGet(-urls) == 0) finish();
+    }
+
+    // Claims a url this node owns, returning whether it is to be submitted, or hands it to the node owning its host
+    private boolean claim(String url, int depth) {
+        if (cluster != null && !cluster.owns(url)) {
+            // Outstanding until the batch holding it has been written
+            outstanding.incrementAndGet();
+            cluster.send(url, depth);
+            return false;
+        }
+        if (!frontier.claim(url)) return false;
+        if (log != null) log.claimed(url, depth);
+        return true;
+    }
+
+    // Claims and submits a url handed over by another node of a distributed crawl
+    private void receive(String url, int depth) {
+        try {
+            if (claim(url, depth)) submit(url, depth);
+        }
+        catch (RejectedExecutionException rejected) {
+            metrics.fail(CrawlMetrics.Failure.REJECTED);
+        }
+    }
+
+    // Returns the row of the previous crawl for a url about to be fetched by a re-crawl, null if there is none
+    private PageRecord previous(String url) {
+        return previous == null ? null : previous.remove(url);
+    }
+
+    // Counts a page a conditional fetch found not modified since the previous crawl
+    private void notModified(PageRecord last) {
+        metrics.not_modified.increment();
+        metrics.bytes_saved.add(last.length);
+    }
+
+    // Returns whether a page fetched in full has the same content as at the previous crawl, counting it if so
+    private boolean unchanged(PageRecord last, PageRecord fetched) {
+        if (last == null || fetched == null || !last.unchanged(fetched)) return false;
+        metrics.unchanged.increment();
+        return true;
+    }
+
+    // Records a parsed page and crawls its links, returning its title, or null if it was recorded already
+    private String record(String url, LinkExtractor.Page page, int depth, PageRecord fetched) {
+        if (isRedundant(url, page.title, fetched)) return null;
+        crawl(page, depth);
+        return page.title;
+    }
+
+    // Logs a visited url to the checkpoint, unless the crawl was stopped while fetching it
+    private void visited(String url, String title) {
+        if (log != null && !workers.isShutdown()) log.visited(url, title);
+    }
+
+    /**
+     * When links are acquired during the crawl, it is necessary to validate them
+     * before submitting them as Tasks. Validation resolves the link against its
+     * parent and normalizes it, so that aliases of the same page are claimed only
+     * once and links that cannot be connected to are never submitted.
+     *
+     * @param link link to validate
+     * @param url parent of link
+     * @return the canonical link, or null if the link is not a crawlable url
+     */
+    private String validateLink(String link, String url) {
+        final var started = System.nanoTime();
+        final var valid = canonicalizer.canonicalize(link, url);
+        metrics.record(CrawlMetrics.Stage.VALIDATE, started);
+        return valid;
+    }
+
+    /**
+     * Helper method for recording a fetched page. Urls are claimed in the frontier
+     * before their Task is submitted, so this only guards against the same page
+     * being recorded twice. When streaming, pages are pushed to the sink instead
+     * of being kept in crawled_pages.
+     *
+     * @param url the url to connect to
+     * @param title the title of the page
+     * @param fetched validators of the page for a re-crawl, null otherwise
+     * @return whether the url is redundant work or not
+     */
+    private boolean isRedundant(String url, String title, PageRecord fetched) {
+        if (sink != null) {
+            // The frontier already guarantees each url is fetched once
+            sink.offer(fetched == null ? new PageRecord(url, title) : fetched.titled(title));
+            metrics.parsed_pages.increment();
+            return false;
+        }
+        // Atomically record the page, a non-null previous title means
+        // another worker already recorded it
+        if (crawled_pages.putIfAbsent(url, title) == null) {
+            if (records != null && fetched != null) records.put(url, fetched.titled(title));
+            metrics.parsed_pages.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Main algorithm for crawling a webpage. Links are extracted from the page by the
+     * LinkExtractor, which reads the href attribute of each anchor tag directly. Each href
+     * is then validated against the base url of the page and, if it can be claimed in the
+     * frontier, submitted to another worker thread together with the other links claimed
+     * from the page. Links already claimed are never fetched again. A page at the max
+     * depth is read without its links, so nothing is validated or submitted for it.
+     * Submitted Tasks wait in the bounded CrawlQueue, a link that finds it full is dropped.
+     *
+     * @param page title and links extracted from url
+     * @param depth depth of the current url
+     */
+    private void crawl(LinkExtractor.Page page, int depth) {
+        // If the current depth is equal to max_depth we stop submitting work
+        if (depth >= max_depth || page.links.isEmpty()) return;
+        final var started = System.nanoTime();
+        final var claimed = new ArrayList<String>(page.links.size());
+        // Obtain all the href values in anchor tags found in the url's html
+        for (var link : page.links) {
+            try {
+                // Validate the href value and claim it, so that only one worker ever fetches it
+                final var valid = validateLink(link, page.base);
+                if (valid != null && claim(valid, depth + 1)) claimed.add(valid);
+            }
+            catch (IndexOutOfBoundsException malformed) {
+                metrics.fail(CrawlMetrics.Failure.INDEX_OUT_OF_BOUNDS);
+            }
+            catch (RejectedExecutionException rejected) {
+                metrics.fail(CrawlMetrics.Failure.REJECTED);
+            }
+        }
+        submitAll(claimed, depth + 1);
+        metrics.record(CrawlMetrics.Stage.EXTRACT, started);
+    }
+
+    /**
+     * Hands the claimed links of a page to the fetch engine as one unit. They become
+     * outstanding together, and without politeness the blocking engine queues all of
+     * their Tasks under a single lock of the CrawlQueue. Links that cannot be queued
+     * are counted as rejected, unclaimed so a later link can claim them again, and
+     * complete at once.
+     *
+     * @param urls the claimed urls
+     * @param depth depth of the urls
+     */
+    private void submitAll(List<String> urls, int depth) {
+        if (urls.isEmpty()) return;
+        outstanding.addAndGet(urls.size());
+        var rejected = 0;
+        if (scheduler == null && fetcher == null) {
+            // The workers are prestarted and take their Tasks from the queue, which is all execute would do
+            if (workers.isShutdown()) rejected = urls.size();
+            else {
+                final var tasks = new ArrayList<Task>(urls.size());
+                for (var url : urls) tasks.add(new Task(url, depth));
+                final var queued = queue.offerAll(tasks);
+                rejected = urls.size() - queued;
+                for (var url : urls.subList(queued, urls.size())) frontier.unclaim(url);
+            }
+        }
+        else {
+            for (var url : urls) {
+                try {
+                    if (scheduler != null) scheduler.submit(url, depth);
+                    else fetch(url, depth);
+                }
+                catch (RejectedExecutionException refused) {
+                    frontier.unclaim(url);
+                    rejected++;
+                }
+            }
+        }
+        if (rejected == 0) return;
+        metrics.fail(CrawlMetrics.Failure.REJECTED, rejected);
+        complete(rejected);
+    }
+
+    /**
+     * Represents a Task thread to be submitted as a worker of a threadpool by the
+     * blocking engine.
+     */
+    private class Task implements Runnable {
+
+        private final String url; // Url to connect to and acquire links from
+        private final int depth; // The current depth of this url
+        private final long queued = System.nanoTime(); // When the Task was queued, or read back from the spill file
+
+        // Constructs a Task with the current depth
+        private Task(String url, int depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {
+            // The delay to the next request to this host runs from now
+            if (scheduler != null) scheduler.started(url);
+            String title = null; // Of the page once recorded
+            var started = metrics.record(CrawlMetrics.Stage.QUEUE_WAIT, queued);
+            final var last = previous(url);
+            try {
+                // Connect to the url and extract its title and links, only building
+                // a Document if the extractor needs one. execute() returns once the
+                // response headers have been read, like get() it fails on a non-200
+                // or non-html response before reading any of the body, while a 304
+                // to a conditional request is passed. Jsoup reads one byte past
+                // max_body_size, so that a larger body is told apart from one cut off.
+                final var fetching = started;
+                final var connection = Jsoup.connect(url).userAgent(user_agent)
+                        .timeout((int)TimeUnit.SECONDS.toMillis(config.fetch_timeout))
+                        .maxBodySize(config.max_body_size + 1);
+                if (last != null) last.condition(connection::header);
+                final var response = connection.execute();
+                started = metrics.record(CrawlMetrics.Stage.CONNECT, started);
+                if (last != null && response.statusCode() == 304) notModified(last);
+                else if (extractor.mode() == LinkExtractor.Mode.DOM && !config.recrawl) {
+                    // Parse straight from the connection, so the page is never held as bytes as well. The body
+                    // is read while it is parsed, so the time spent in its reads is the download and the rest
+                    // of the parse is the parse
+                    try (var body = new LimitedInputStream(response.bodyStream(), config.max_body_size)) {
+                        // Closing the body drops the connection of a body that is refused without reading it
+                        LimitedInputStream.check(response.header("Content-Length"), config.max_body_size);
+                        final var doc = Jsoup.parse(body, response.charset(), url);
+                        final var reading = body.readNanos();
+                        metrics.recordNanos(CrawlMetrics.Stage.DOWNLOAD, reading);
+                        metrics.recordNanos(CrawlMetrics.Stage.FETCH, started - fetching + reading);
+                        metrics.recordNanos(CrawlMetrics.Stage.PARSE, Math.max(0L, System.nanoTime() - started - reading));
+                        title = record(url, extractor.extract(url, doc, depth < max_depth), depth, null);
+                    }
+                }
+                else {
+                    try {
+                        LimitedInputStream.check(response.header("Content-Length"), config.max_body_size);
+                    }
+                    catch (LimitedInputStream.TooLargeException refused) {
+                        response.bodyStream().close();
+                        throw refused;
+                    }
+                    response.bufferUp();
+                    if (response.bodyAsBytes().length > config.max_body_size) throw new LimitedInputStream.TooLargeException(config.max_body_size);
+                    started = metrics.record(CrawlMetrics.Stage.DOWNLOAD, started);
+                    metrics.record(CrawlMetrics.Stage.FETCH, fetching);
+                    final var fetched = config.recrawl ? new PageRecord(url, null, depth, response.header("ETag"), response.header("Last-Modified"),
+                            FingerprintSet.fingerprint(response.body()), response.bodyAsBytes().length) : null;
+                    if (!unchanged(last, fetched)) {
+                        final var page = extractor.mode() == LinkExtractor.Mode.STREAMING
+                                ? extractor.extract(url, response.body(), depth < max_depth)
+                                : extractor.extract(url, response.parse(), depth < max_depth);
+                        metrics.record(CrawlMetrics.Stage.PARSE, started);
+                        // If already seen skip the url
+                        title = record(url, page, depth, fetched);
+                    }
+                }
+            }
+            catch (UnsupportedMimeTypeException refused) {
+                metrics.fail(CrawlMetrics.Failure.NOT_HTML);
+            }
+            catch (LimitedInputStream.TooLargeException refused) {
+                metrics.fail(CrawlMetrics.Failure.TOO_LARGE);
+            }
+            // Ignore URLs that fail to connect
+            catch (IOException failed) {
+                metrics.fail(CrawlMetrics.Failure.IO);
+            }
+            // Jsoup wraps the failures of reading a body while buffering or parsing it
+            catch (UncheckedIOException failed) {
+                metrics.fail(failed.ioException() instanceof LimitedInputStream.TooLargeException
+                        ? CrawlMetrics.Failure.TOO_LARGE : CrawlMetrics.Failure.IO);
+            }
+            // Any other failure, such as a url Jsoup refuses to connect to, is a failed fetch as well
+            catch (RuntimeException failed) {
+                metrics.fail(CrawlMetrics.Failure.IO);
+            }
+            finally {
+                visited(url, title);
+                // Free this url's slot of its host, which may release more work
+                if (scheduler != null) scheduler.done(url);
+                // The urls of this page were submitted first, so the crawl is only complete
+                // here if there is no more work to be done
+                complete();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package crawler;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless front end of the Crawler, for servers without a display. The crawl
+ * is configured by arguments or a properties file, progress is printed every
+ * few seconds, and the process exits once the crawl (and upload, if requested)
+ * has completed.
+ */
+class CrawlerCli {
+
+    private static final long report_seconds = 10; // Seconds between progress reports
+
+    /**
+     * Runs a single crawl to completion.
+     *
+     * @param args crawl settings of the form --key=value, see CrawlConfig
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final CrawlConfig config;
+        try {
+            config = CrawlConfig.parse(args);
+        }
+        catch (IllegalArgumentException | IOException error) {
+            System.err.println(error.getMessage());
+            System.err.println(CrawlConfig.usage);
+            System.exit(2);
+            return;
+        }
+
+        final var done = new CountDownLatch(1);
+        final Crawler crawler;
+        try {
+            crawler = new Crawler(config, new Crawler.Listener() {
+                @Override
+                public void databaseUpdated(int processed, int total, int added, int redundant) {
+                    if (!config.stream && processed == total) System.out.printf("Database: %d added, %d redundant%n", added, redundant);
+                }
+
+                @Override
+                public void finished() {
+                    done.countDown();
+                }
+            });
+        }
+        catch (IOException error) {
+            System.err.println("Could not create crawl: " + error.getMessage());
+            System.exit(1);
+            return;
+        }
+        final var started = System.currentTimeMillis();
+        try {
+            crawler.start();
+        }
+        catch (IllegalArgumentException | IOException error) {
+            crawler.stop();
+            System.err.println("Could not start crawl: " + error.getMessage());
+            System.exit(1);
+            return;
+        }
+        // Stop the crawl cleanly, flushing any streamed pages, if the process is terminated
+        final var hook = new Thread(() -> {
+            crawler.stop();
+            try {
+                done.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ignored) {}
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        while (!done.await(report_seconds, TimeUnit.SECONDS)) report(crawler, started);
+        report(crawler, started);
+        var status = 0;
+        if (crawler.failure() != null) {
+            System.err.println("Crawl failed: " + crawler.failure());
+            status = 1;
+        }
+        if (config.upload && !config.stream) {
+            try {
+                crawler.upload().get();
+            }
+            catch (ExecutionException failed) {
+                System.err.println("Upload failed: " + failed.getCause().getMessage());
+                status = 1;
+            }
+        }
+        Runtime.getRuntime().removeShutdownHook(hook);
+        System.exit(status);
+    }
+
+    // Prints the progress of the crawl
+    private static void report(Crawler crawler, long started) {
+        final var elapsed = (System.currentTimeMillis() - started) / 1000;
+        final var snapshot = crawler.snapshot();
+        System.out.printf("Elapsed time: %d:%02d  Parsed pages: %d  Skipped: %d  Queued: %d  Dropped: %d%n",
+                elapsed / 60, elapsed % 60, snapshot.parsed_pages, snapshot.fetches_avoided, snapshot.queued, snapshot.dropped);
+        if (snapshot.not_modified + snapshot.unchanged > 0) {
+            System.out.printf("Not modified: %d  Unchanged: %d  Saved: %d KB, about %d s%n", snapshot.not_modified, snapshot.unchanged,
+                    snapshot.bytes_saved / 1024, snapshot.time_saved / 1_000_000_000L);
+        }
+        if (snapshot.links_sent + snapshot.links_received > 0) {
+            System.out.printf("Links sent: %d  Received: %d%n", snapshot.links_sent, snapshot.links_received);
+        }
+    }
+}
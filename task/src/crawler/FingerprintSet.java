@@ -0,0 +1,166 @@
+package crawler;
+
+import java.util.Arrays;
+
+/**
+ * A set of 64-bit url fingerprints kept in open addressing tables of primitive
+ * longs, a fraction of the memory of a set of url strings. The set is split into
+ * stripes that are locked independently, so concurrent workers rarely contend.
+ * Two urls with the same fingerprint are treated as the same url, the chance of
+ * that happening at all in a crawl of 10 million urls is about one in 370,000.
+ */
+class FingerprintSet {
+
+    private static final int stripe_bits = 6;
+    private static final float load_factor = 0.75f;
+
+    // One independently locked table
+    private static final class Stripe {
+        long[] table; // Fingerprints, 0 for an empty slot
+        int size = 0;
+
+        Stripe(int capacity) {
+            table = new long[capacity];
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[1 << stripe_bits];
+
+    /**
+     * Constructs a FingerprintSet sized to hold expected fingerprints without growing.
+     *
+     * @param expected number of fingerprints expected
+     */
+    FingerprintSet(long expected) {
+        final var per_stripe = (long)Math.ceil(Math.max(1, expected >> stripe_bits) / load_factor);
+        final var capacity = (int)Math.min(1 << 30, Math.max(16, Long.highestOneBit(per_stripe - 1) << 1));
+        for (var i = 0; i < stripes.length; i++) stripes[i] = new Stripe(capacity);
+    }
+
+    /**
+     * Hashes a url to 64 bits, FNV-1a followed by a murmur3 finalizer so every bit
+     * of the fingerprint depends on every character.
+     *
+     * @param url the url
+     * @return the fingerprint of the url
+     */
+    static long fingerprint(String url) {
+        var hash = 0xcbf29ce484222325L;
+        for (var i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Adds a fingerprint.
+     *
+     * @param fingerprint the fingerprint to add
+     * @return true if the fingerprint was not in the set
+     */
+    boolean add(long fingerprint) {
+        // 0 marks an empty slot, so it shares a slot with 1
+        if (fingerprint == 0) fingerprint = 1;
+        // The stripe is chosen by the high bits and the slot by the low bits
+        final var stripe = stripes[(int)(fingerprint >>> (64 - stripe_bits))];
+        synchronized (stripe) {
+            if (!insert(stripe.table, fingerprint)) return false;
+            if (++stripe.size > stripe.table.length * load_factor) grow(stripe);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a fingerprint.
+     *
+     * @param fingerprint the fingerprint to remove
+     * @return true if the fingerprint was in the set
+     */
+    boolean remove(long fingerprint) {
+        if (fingerprint == 0) fingerprint = 1;
+        final var stripe = stripes[(int)(fingerprint >>> (64 - stripe_bits))];
+        synchronized (stripe) {
+            final var table = stripe.table;
+            final var mask = table.length - 1;
+            var slot = (int)fingerprint & mask;
+            for (; table[slot] != fingerprint; slot = (slot + 1) & mask) {
+                if (table[slot] == 0) return false;
+            }
+            // Shift the rest of the probe run back over the freed slot, so no probe stops short at it
+            for (var next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+                final var home = (int)table[next] & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    table[slot] = table[next];
+                    slot = next;
+                }
+            }
+            table[slot] = 0;
+            stripe.size--;
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of fingerprints in the set
+     */
+    long size() {
+        var size = 0L;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes held by the tables
+     */
+    long bytes() {
+        var bytes = 0L;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                bytes += 8L * stripe.table.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes every fingerprint, keeping the tables at their current size.
+     */
+    void clear() {
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                Arrays.fill(stripe.table, 0L);
+                stripe.size = 0;
+            }
+        }
+    }
+
+    // Inserts by linear probing, returning false if the fingerprint is already present
+    private static boolean insert(long[] table, long fingerprint) {
+        final var mask = table.length - 1;
+        for (var slot = (int)fingerprint & mask; ; slot = (slot + 1) & mask) {
+            if (table[slot] == fingerprint) return false;
+            if (table[slot] == 0) {
+                table[slot] = fingerprint;
+                return true;
+            }
+        }
+    }
+
+    // Doubles the table of a stripe, lock must be held
+    private static void grow(Stripe stripe) {
+        final var old = stripe.table;
+        if (old.length == 1 << 30) throw new IllegalStateException("fingerprint set full");
+        stripe.table = new long[old.length << 1];
+        for (var fingerprint : old) if (fingerprint != 0) insert(stripe.table, fingerprint);
+    }
+}
@@ -0,0 +1,121 @@
+package crawler;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the urls that have already been handed to a worker. A url is claimed
+ * exactly once, before its Task is submitted, so that no two workers ever
+ * download and parse the same page. How claimed urls are remembered depends on
+ * the Mode, trading exactness for memory on very large crawls. A url the queues
+ * refuse is unclaimed so a later link can claim it again, except with a Bloom
+ * filter, which cannot forget a url; a checkpoint keeps it as pending either way.
+ */
+class Frontier {
+
+    /**
+     * How claimed urls are remembered.
+     */
+    enum Mode {
+        STRINGS, // The urls themselves, exact, around 100 bytes or more per url
+        FINGERPRINTS, // 64-bit fingerprints, exact unless two urls collide, around 11 to 21 bytes per url
+        BLOOM // A Bloom filter, around 2 bytes per url, a small fraction of new urls are mistaken for claimed ones
+    }
+
+    private static final double false_positive_rate = 0.001; // Of the Bloom filter
+
+    private final Mode mode;
+    private final Set<String> claimed; // Urls already handed to a worker, STRINGS only
+    private final FingerprintSet fingerprints; // Fingerprints of claimed urls, FINGERPRINTS only
+    private final BloomFilter bloom; // Fingerprints of claimed urls, BLOOM only
+    private final LongAdder fetches_avoided = new LongAdder(); // Claims lost to an earlier claim
+
+    // Constructs a Frontier of url strings
+    Frontier() {
+        this(Mode.STRINGS, 0);
+    }
+
+    /**
+     * Constructs a Frontier.
+     *
+     * @param mode how claimed urls are remembered
+     * @param expected_urls number of urls expected to be claimed, sizing the fingerprint tables or Bloom filter
+     */
+    Frontier(Mode mode, long expected_urls) {
+        this.mode = mode;
+        this.claimed = mode == Mode.STRINGS ? ConcurrentHashMap.newKeySet() : null;
+        this.fingerprints = mode == Mode.FINGERPRINTS ? new FingerprintSet(expected_urls) : null;
+        this.bloom = mode == Mode.BLOOM ? new BloomFilter(expected_urls, false_positive_rate) : null;
+    }
+
+    /**
+     * Atomically claims a url for fetching using put-if-absent semantics.
+     *
+     * @param url the url to claim
+     * @return true if the caller now owns the url and should fetch it
+     */
+    boolean claim(String url) {
+        if (restore(url)) return true;
+        fetches_avoided.increment();
+        return false;
+    }
+
+    /**
+     * Claims a url read back from a checkpoint, without counting a fetch avoided.
+     *
+     * @param url the url to claim
+     * @return true if the url was not claimed yet
+     */
+    boolean restore(String url) {
+        switch (mode) {
+            case FINGERPRINTS: return fingerprints.add(FingerprintSet.fingerprint(url));
+            case BLOOM: return bloom.add(FingerprintSet.fingerprint(url));
+            default: return claimed.add(url);
+        }
+    }
+
+    /**
+     * Forgets the claim of a url that will not be fetched after all.
+     *
+     * @param url the url to unclaim
+     * @return true if the url is no longer claimed, false if it was not claimed or the mode cannot forget it
+     */
+    boolean unclaim(String url) {
+        switch (mode) {
+            case FINGERPRINTS: return fingerprints.remove(FingerprintSet.fingerprint(url));
+            case BLOOM: return false;
+            default: return claimed.remove(url);
+        }
+    }
+
+    /**
+     * @return the number of urls claimed so far
+     */
+    long size() {
+        switch (mode) {
+            case FINGERPRINTS: return fingerprints.size();
+            case BLOOM: return bloom.size();
+            default: return claimed.size();
+        }
+    }
+
+    /**
+     * @return the number of fetches skipped because the url was already claimed
+     */
+    long fetchesAvoided() {
+        return fetches_avoided.sum();
+    }
+
+    /**
+     * Forgets all claims and resets the counters for a new crawl.
+     */
+    void clear() {
+        switch (mode) {
+            case FINGERPRINTS: fingerprints.clear(); break;
+            case BLOOM: bloom.clear(); break;
+            default: claimed.clear(); break;
+        }
+        fetches_avoided.reset();
+    }
+}
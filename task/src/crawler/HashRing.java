@@ -0,0 +1,61 @@
+package crawler;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Assigns every host to one node of a distributed crawl by consistent hashing.
+ * Each node is placed on the ring at replicas points, and a host belongs to the
+ * node of the first point at or after the hash of the host, so that adding or
+ * removing a node only moves the hosts of its own points. Hashing the host rather
+ * than the url keeps every url of a host on one node, which is what lets each node
+ * schedule its hosts politely on its own.
+ */
+class HashRing {
+
+    static final int DEFAULT_REPLICAS = 128; // Points of each node on the ring
+
+    private final TreeMap<Long, Integer> points = new TreeMap<>(); // Node index by point
+
+    /**
+     * Constructs a HashRing of the given nodes. Every node of a crawl must build
+     * its ring from the same list to agree on the owner of each host.
+     *
+     * @param nodes names of the nodes in order, their index is their owner number
+     * @param replicas points of each node on the ring
+     */
+    HashRing(List<String> nodes, int replicas) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("nodes invalid");
+        if (replicas < 1) throw new IllegalArgumentException("replicas invalid");
+        for (var node = 0; node < nodes.size(); node++) {
+            for (var replica = 0; replica < replicas; replica++) {
+                points.put(FingerprintSet.fingerprint(nodes.get(node) + '#' + replica), node);
+            }
+        }
+    }
+
+    /**
+     * @param host a lower case host name
+     * @return the index of the node owning the host
+     */
+    int owner(String host) {
+        final var point = points.ceilingEntry(FingerprintSet.fingerprint(host));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * @param url a canonical url
+     * @return the index of the node owning the host of the url, 0 if it has none
+     */
+    int ownerOfUrl(String url) {
+        try {
+            final var host = new URI(url).getHost();
+            return host == null ? 0 : owner(host);
+        }
+        catch (URISyntaxException invalid) {
+            return 0;
+        }
+    }
+}
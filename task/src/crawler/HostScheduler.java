@@ -0,0 +1,434 @@
+package crawler;
+
+import org.jsoup.Jsoup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Releases work to the fetch engine host by host. Each host has its own queue of
+ * parked urls, at most max_per_host of its urls are fetched at once, and
+ * consecutive requests to it are at least delay milliseconds apart, or longer if
+ * its robots.txt asks for a Crawl-delay. The delay runs from when the engine
+ * starts a fetch rather than from its release, as a released url may still wait
+ * for a worker. Urls disallowed by robots.txt are never fetched, they are checked
+ * outside the lock once released. Because no worker ever waits on a busy host, throughput grows with the
+ * number of distinct hosts instead of collapsing onto the most linked one. At most
+ * capacity urls are parked in memory, further urls are spilled to a file and
+ * parked once room frees up. A producer never waits for room, as the producers
+ * are the workers the released urls run on, so a url is only dropped for lack of
+ * room if the spill file cannot be written. A host with nothing parked or in flight
+ * is forgotten once its delay has passed, so a long crawl only keeps the hosts it
+ * is busy with, and its robots.txt is read again if more of its urls turn up.
+ */
+class HostScheduler {
+
+    private static final long max_robots_delay = 60_000L; // Longest Crawl-delay honoured
+
+    // A url waiting for its host
+    private static final class Parked {
+        final String key; // Scheme and authority of the url
+        final String path; // Path and query of the url, matched against robots.txt
+        final String url;
+        final int depth;
+        RobotsRules robots = null; // Rules of its host, set when it leaves its queue
+
+        Parked(String key, String path, String url, int depth) {
+            this.key = key;
+            this.path = path;
+            this.url = url;
+            this.depth = depth;
+        }
+    }
+
+    // State of a single host, only accessed while holding the scheduler's lock
+    private static final class Host {
+        final ArrayDeque<Parked> parked = new ArrayDeque<>();
+        RobotsRules robots = null; // Null until robots.txt has been read
+        long delay; // Milliseconds between requests
+        long next_allowed = 0L; // Earliest time of the next request
+        int in_flight = 0; // Urls released and not done yet
+        int starting = 0; // Urls released whose fetch has not started yet, holding back the next while delay is set
+        boolean wake_scheduled = false; // Whether a release is already scheduled for next_allowed
+    }
+
+    private final int max_per_host; // Urls of one host fetched at once
+    private final long delay; // Minimum milliseconds between requests to one host
+    private final boolean robots; // Whether robots.txt is honoured
+    private final String user_agent;
+    private final int capacity; // Urls parked in memory across all hosts
+    private final SpillFile spill_file; // Overflow of the parked urls
+    private final ObjIntConsumer<String> release; // Hands a url and its depth to the fetch engine
+    private final IntConsumer drop; // Receives the number of urls that will never be released
+    private final Consumer<String> refused; // Receives each url dropped for lack of room or refused by the engine
+
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final ScheduledExecutorService waker; // Releases urls once their host's delay has passed
+    private final ExecutorService robots_fetchers; // Reads robots.txt files
+    private final AtomicInteger pending = new AtomicInteger(); // Urls submitted and not yet released or dropped
+    private final AtomicLong dropped = new AtomicLong(); // Urls dropped for lack of room or by robots.txt
+    private int parked = 0; // Urls parked in memory across all hosts
+    private boolean refilling = false; // Whether spilled urls are being parked, so releases do not refill again
+
+    /**
+     * Constructs a HostScheduler. release is run once a url may be fetched, started
+     * must be called as its fetch begins and done once it has finished; drop is run instead if the
+     * url is disallowed, cannot be parked or spilled, release throws RejectedExecutionException
+     * or the url was spilled and cannot be read back. A url dropped for lack of room
+     * or refused by the engine is passed to refused first, so it can be claimed again.
+     *
+     * @param max_per_host urls of one host fetched at once
+     * @param delay minimum milliseconds between requests to one host
+     * @param robots whether robots.txt is honoured
+     * @param user_agent user agent robots.txt is requested with
+     * @param capacity urls parked in memory
+     * @param spill_directory directory of the spill file
+     * @param release hands a url and its depth to the fetch engine
+     * @param drop receives the number of urls that will never be released
+     * @param refused receives each url dropped for lack of room or refused by the engine
+     * @throws IOException if the spill file cannot be created
+     */
+    HostScheduler(int max_per_host, long delay, boolean robots, String user_agent, int capacity, Path spill_directory,
+                  ObjIntConsumer<String> release, IntConsumer drop, Consumer<String> refused) throws IOException {
+        if (capacity < 1) throw new IllegalArgumentException("capacity invalid");
+        this.max_per_host = max_per_host;
+        this.delay = delay;
+        this.robots = robots;
+        this.user_agent = user_agent;
+        this.capacity = capacity;
+        this.spill_file = new SpillFile(spill_directory, "host-scheduler");
+        this.release = release;
+        this.drop = drop;
+        this.refused = refused;
+        this.waker = Executors.newSingleThreadScheduledExecutor(Crawler.daemon("host-scheduler"));
+        this.robots_fetchers = Executors.newFixedThreadPool(4, Crawler.daemon("robots-fetcher"));
+    }
+
+    /**
+     * @return the number of urls submitted and not yet released or dropped
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of urls dropped for lack of room or by robots.txt
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Parks a url until its host is ready.
+     *
+     * @param url the url to schedule
+     * @param depth depth of the url
+     */
+    void submit(String url, int depth) {
+        pending.incrementAndGet();
+        final var next = park(url, depth);
+        if (next == null) {
+            discard();
+            return;
+        }
+        List<Parked> ready = null;
+        synchronized (this) {
+            // Keep spilled urls ahead of new ones by parking them first
+            if ((parked >= capacity || spilled() > 0) && spill(next)) return;
+            if (parked < capacity) ready = add(next);
+        }
+        if (ready == null) {
+            refused.accept(next.url);
+            discard();
+        }
+        else run(ready);
+    }
+
+    /**
+     * Marks a released url as being fetched from now, so the next request to its
+     * host waits the delay from this moment.
+     *
+     * @param url the url that was released
+     */
+    void started(String url) {
+        final String key;
+        try {
+            key = key(new URI(url));
+        }
+        catch (URISyntaxException invalid) {
+            return;
+        }
+        List<Parked> ready;
+        synchronized (this) {
+            final var host = hosts.get(key);
+            if (host == null) return;
+            host.starting--;
+            host.next_allowed = System.currentTimeMillis() + host.delay;
+            ready = pump(key, host);
+        }
+        run(ready);
+    }
+
+    /**
+     * Marks a released url as fetched, freeing a slot of its host.
+     *
+     * @param url the url that was released
+     */
+    void done(String url) {
+        final String key;
+        try {
+            key = key(new URI(url));
+        }
+        catch (URISyntaxException invalid) {
+            return;
+        }
+        List<Parked> ready;
+        synchronized (this) {
+            final var host = hosts.get(key);
+            if (host == null) return;
+            host.in_flight--;
+            ready = pump(key, host);
+            evict(key, host);
+        }
+        run(ready);
+    }
+
+    /**
+     * Drops every parked url, deletes the spill file and stops the scheduler threads.
+     */
+    void shutdown() {
+        synchronized (this) {
+            for (var host : hosts.values()) {
+                pending.addAndGet(-host.parked.size());
+                host.parked.clear();
+            }
+            parked = 0;
+            pending.addAndGet(-spill_file.size());
+            spill_file.delete();
+        }
+        waker.shutdownNow();
+        robots_fetchers.shutdownNow();
+    }
+
+    private static String key(URI uri) {
+        return uri.getScheme() + "://" + uri.getRawAuthority();
+    }
+
+    // Splits a url into its host and path, null if it is not a valid url
+    private static Parked park(String url, int depth) {
+        try {
+            final var uri = new URI(url);
+            final var path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            return new Parked(key(uri), uri.getRawQuery() == null ? path : path + '?' + uri.getRawQuery(), url, depth);
+        }
+        catch (URISyntaxException invalid) {
+            return null;
+        }
+    }
+
+    // Parks a url in its host's queue, returning the urls that may be released now, lock must be held
+    private List<Parked> add(Parked next) {
+        var host = hosts.get(next.key);
+        if (host == null) {
+            host = new Host();
+            host.delay = delay;
+            hosts.put(next.key, host);
+            if (robots) fetchRobots(next.key, host);
+            else host.robots = RobotsRules.allow_all;
+        }
+        host.parked.add(next);
+        parked++;
+        return pump(next.key, host);
+    }
+
+    // Returns the number of urls in the spill file, lock must be held
+    private int spilled() {
+        return spill_file.size();
+    }
+
+    // Appends a url to the spill file, lock must be held
+    private boolean spill(Parked next) {
+        return spill_file.append(next.depth + "\t" + next.url);
+    }
+
+    // Parks spilled urls once at most half of capacity is parked, lock must be held
+    private List<Parked> refill() {
+        if (refilling || spilled() == 0 || parked > capacity / 2) return List.of();
+        refilling = true;
+        final var ready = new ArrayList<Parked>();
+        try {
+            while (parked < capacity && spilled() > 0) {
+                final var remaining = spilled();
+                final String line;
+                try {
+                    line = spill_file.next();
+                }
+                catch (IOException failed) {
+                    // The remaining spilled urls cannot be read back
+                    dropped.addAndGet(remaining);
+                    pending.addAndGet(-remaining);
+                    drop.accept(remaining);
+                    break;
+                }
+                final var tab = line.indexOf('\t');
+                ready.addAll(add(park(line.substring(tab + 1), Integer.parseInt(line, 0, tab, 10))));
+            }
+        }
+        finally {
+            refilling = false;
+        }
+        return ready;
+    }
+
+    // Takes the urls of a host that may be released now, lock must be held
+    private List<Parked> pump(String key, Host host) {
+        if (host.robots == null || host.parked.isEmpty()) return List.of();
+        final var ready = new ArrayList<Parked>();
+        var now = System.currentTimeMillis();
+        while (!host.parked.isEmpty() && ready(host, now)) {
+            final var next = host.parked.poll();
+            parked--;
+            next.robots = host.robots;
+            ready.add(next);
+            host.in_flight++;
+            host.starting++;
+        }
+        if (!ready.isEmpty()) ready.addAll(refill());
+        // Wake up once the delay has passed if urls are still waiting on it, started wakes the host instead
+        // while a url released under a delay has not started
+        if (!host.parked.isEmpty() && host.in_flight < max_per_host && (host.delay == 0 || host.starting == 0) && !host.wake_scheduled) {
+            host.wake_scheduled = true;
+            try {
+                waker.schedule(() -> wake(key, host), Math.max(1, host.next_allowed - now), TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException stopped) {
+                host.wake_scheduled = false;
+            }
+        }
+        return ready;
+    }
+
+    // Releases the urls of a host whose delay has passed, or forgets it if it has none
+    private void wake(String key, Host host) {
+        List<Parked> ready;
+        synchronized (this) {
+            host.wake_scheduled = false;
+            ready = pump(key, host);
+            evict(key, host);
+        }
+        run(ready);
+    }
+
+    // Forgets a host with nothing parked or in flight, or wakes it once its delay has passed to try again, lock must be held
+    private void evict(String key, Host host) {
+        if (hosts.get(key) != host || !host.parked.isEmpty() || host.in_flight > 0 || host.robots == null) return;
+        final var wait = host.next_allowed - System.currentTimeMillis();
+        if (wait <= 0) {
+            hosts.remove(key);
+            return;
+        }
+        if (host.wake_scheduled) return;
+        host.wake_scheduled = true;
+        try {
+            waker.schedule(() -> wake(key, host), wait, TimeUnit.MILLISECONDS);
+        }
+        catch (RuntimeException stopped) {
+            host.wake_scheduled = false;
+        }
+    }
+
+    // Whether a host may have another url released now, lock must be held
+    private boolean ready(Host host, long now) {
+        return host.in_flight < max_per_host && now >= host.next_allowed && (host.delay == 0 || host.starting == 0);
+    }
+
+    // Hands the ready urls to the engine outside the lock, dropping those disallowed by robots.txt
+    private void run(List<Parked> ready) {
+        for (var next : ready) {
+            if (!next.robots.allows(next.path)) {
+                free(next);
+                discard();
+                continue;
+            }
+            try {
+                release.accept(next.url, next.depth);
+            }
+            catch (RuntimeException rejected) {
+                // The engine refused the url
+                refused.accept(next.url);
+                dropped.incrementAndGet();
+                drop.accept(1);
+                free(next);
+            }
+            finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    // Frees the slot a url that will not be fetched was released into, which may release more
+    private void free(Parked next) {
+        List<Parked> freed;
+        synchronized (this) {
+            final var host = hosts.get(next.key);
+            host.in_flight--;
+            host.starting--;
+            freed = pump(next.key, host);
+            evict(next.key, host);
+        }
+        run(freed);
+    }
+
+    // Drops a url that will never be released
+    private void discard() {
+        dropped.incrementAndGet();
+        try {
+            drop.accept(1);
+        }
+        finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    // Reads the robots.txt of a host in the background, releasing its urls once known
+    private void fetchRobots(String key, Host host) {
+        try {
+            robots_fetchers.execute(() -> {
+                var rules = RobotsRules.allow_all;
+                try {
+                    final var response = Jsoup.connect(key + "/robots.txt").userAgent(user_agent)
+                            .ignoreContentType(true).ignoreHttpErrors(true).execute();
+                    if (response.statusCode() == 200) rules = RobotsRules.parse(response.body());
+                }
+                // A host whose robots.txt cannot be read is crawled without rules
+                catch (IOException | RuntimeException ignored) {}
+                List<Parked> ready;
+                synchronized (this) {
+                    host.robots = rules;
+                    host.delay = Math.max(delay, Math.min(rules.crawlDelay(), max_robots_delay));
+                    ready = pump(key, host);
+                }
+                run(ready);
+            });
+        }
+        catch (RuntimeException stopped) {
+            host.robots = RobotsRules.allow_all;
+        }
+    }
+}
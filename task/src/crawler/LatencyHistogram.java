@@ -0,0 +1,96 @@
+package crawler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of durations in nanoseconds. Buckets are log-linear: each
+ * power of two is split into 16 equal buckets, so any percentile is reported within
+ * about 6% of the true value whatever its magnitude, in a fixed 960 counters.
+ */
+class LatencyHistogram {
+
+    private static final int sub_bits = 4; // Buckets per power of two are 2^sub_bits
+    private static final int sub_count = 1 << sub_bits;
+    private static final int bucket_count = (64 - sub_bits) * sub_count;
+
+    /**
+     * Durations recorded by a histogram up to one point in time, in nanoseconds.
+     */
+    static final class Summary {
+        final long count;
+        final long mean;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long max;
+
+        private Summary(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(bucket_count);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration, negative durations are recorded as 0.
+     *
+     * @param nanos the duration
+     */
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return the count, mean, percentiles and maximum of the durations recorded so far
+     */
+    Summary summary() {
+        final var counts = new long[bucket_count];
+        var total = 0L;
+        for (var i = 0; i < bucket_count; i++) total += counts[i] = buckets.get(i);
+        if (total == 0) return new Summary(0, 0, 0, 0, 0, 0);
+        final var maximum = max.get();
+        return new Summary(total, sum.sum() / Math.max(1, count.sum()),
+                Math.min(maximum, percentile(counts, total, 0.50)),
+                Math.min(maximum, percentile(counts, total, 0.90)),
+                Math.min(maximum, percentile(counts, total, 0.99)),
+                maximum);
+    }
+
+    // Returns the upper bound of the bucket holding the given fraction of the durations
+    private static long percentile(long[] counts, long total, double fraction) {
+        final var rank = (long)Math.ceil(fraction * total);
+        var seen = 0L;
+        for (var i = 0; i < bucket_count; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i + 1 < bucket_count ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // Values below sub_count have a bucket each, above that each power of two has sub_count buckets
+    private static int index(long value) {
+        if (value < sub_count) return (int)value;
+        final var exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - sub_bits + 1) * sub_count + (int)((value >>> (exponent - sub_bits)) & (sub_count - 1));
+    }
+
+    private static long lowerBound(int index) {
+        if (index < sub_count) return index;
+        final var exponent = index / sub_count + sub_bits - 1;
+        return (long)(sub_count + index % sub_count) << (exponent - sub_bits);
+    }
+}
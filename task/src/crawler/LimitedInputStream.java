@@ -0,0 +1,94 @@
+package crawler;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes on at most limit bytes of a response body, failing the read that goes
+ * past them, so that a page is parsed straight from its connection without ever
+ * holding more than limit bytes of it. The time spent in reads is summed, so that
+ * the download of a body parsed as it arrives can be told apart from the parse.
+ */
+class LimitedInputStream extends FilterInputStream {
+
+    /**
+     * Thrown once a body is found to be longer than its limit, by its Content-Length
+     * header or while it is read.
+     */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long limit) {
+            super("body larger than " + limit + " bytes");
+        }
+    }
+
+    private final long limit; // Bytes that may be read
+    private long read = 0; // Bytes read so far
+    private long reading = 0; // Nanoseconds spent in reads so far
+
+    // Constructs a LimitedInputStream reading from in
+    LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    /**
+     * @param content_length value of the Content-Length header, or null if absent
+     * @param limit bytes a body may have
+     * @throws TooLargeException if the header declares more than limit bytes
+     */
+    static void check(String content_length, long limit) throws TooLargeException {
+        if (content_length == null) return;
+        try {
+            if (Long.parseLong(content_length.trim()) > limit) throw new TooLargeException(limit);
+        }
+        // A malformed length is left for the limit to catch while reading
+        catch (NumberFormatException ignored) {}
+    }
+
+    /**
+     * @return the nanoseconds spent reading the body so far
+     */
+    long readNanos() {
+        return reading;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final var started = System.nanoTime();
+        final var b = super.read();
+        reading += System.nanoTime() - started;
+        if (b >= 0) count(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        final var started = System.nanoTime();
+        final var n = super.read(buffer, offset, length);
+        reading += System.nanoTime() - started;
+        if (n > 0) count(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final var started = System.nanoTime();
+        final var skipped = super.skip(n);
+        reading += System.nanoTime() - started;
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws TooLargeException {
+        read += n;
+        if (read > limit) throw new TooLargeException(limit);
+    }
+}
@@ -0,0 +1,201 @@
+package crawler;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the title and the href values of anchor tags from a fetched page. In DOM
+ * mode the hrefs are read straight from the attributes of a parsed Jsoup Document.
+ * In STREAMING mode the raw html is scanned once for anchor, base and title tags,
+ * so no Document is ever built.
+ */
+class LinkExtractor {
+
+    /**
+     * How a fetched page is turned into links.
+     */
+    enum Mode {
+        DOM,      // Parse a full Jsoup Document and select a[href]
+        STREAMING // Scan the raw html for the title and hrefs only
+    }
+
+    /**
+     * The parts of a page kept by the crawl.
+     */
+    static final class Page {
+        final String title; // Text of the first title tag, or an empty string
+        final String base; // Url the links are relative to
+        final List<String> links; // Href values in document order
+
+        Page(String title, String base, List<String> links) {
+            this.title = title;
+            this.base = base;
+            this.links = links;
+        }
+    }
+
+    private final Mode mode; // How pages are read
+    private final boolean absolute; // Whether links are resolved against the document base url
+
+    // Constructs a LinkExtractor
+    LinkExtractor(Mode mode, boolean absolute) {
+        this.mode = mode;
+        this.absolute = absolute;
+    }
+
+    /**
+     * @return how pages are read
+     */
+    Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Reads the title and links of a parsed Document.
+     *
+     * @param url url used to connect to doc
+     * @param doc the parsed page
+     * @return the page
+     */
+    Page extract(String url, Document doc) {
+        return extract(url, doc, true);
+    }
+
+    /**
+     * Reads the title of a parsed Document, and its links if links is set. A page at
+     * the maximum depth of a crawl is read without its links, as none would be followed.
+     *
+     * @param url url used to connect to doc
+     * @param doc the parsed page
+     * @param links whether to read the links
+     * @return the page, without links unless links is set
+     */
+    Page extract(String url, Document doc, boolean links) {
+        if (!links) return new Page(doc.title(), url, List.of());
+        final var anchors = doc.select("a[href]");
+        final var hrefs = new ArrayList<String>(anchors.size());
+        for (var anchor : anchors) {
+            // absUrl honours <base href> and returns an empty string if the href cannot be resolved
+            final var link = absolute ? anchor.absUrl("href") : anchor.attr("href");
+            if (!link.isEmpty()) hrefs.add(link);
+        }
+        return new Page(doc.title(), url, hrefs);
+    }
+
+    /**
+     * Reads the title and links of a page by scanning its raw html.
+     *
+     * @param url url used to fetch the html
+     * @param html the raw page
+     * @return the page
+     */
+    Page extract(String url, String html) {
+        return extract(url, html, true);
+    }
+
+    /**
+     * Reads the title of a page by scanning its raw html, and its links if links is
+     * set. Without links the scan stops at the end of the title.
+     *
+     * @param url url used to fetch the html
+     * @param html the raw page
+     * @param links whether to read the links
+     * @return the page, without links unless links is set
+     */
+    Page extract(String url, String html, boolean links) {
+        final var hrefs = links ? new ArrayList<String>() : List.<String>of();
+        var title = "";
+        var base = url;
+        var found_title = false;
+        final var length = html.length();
+        var i = html.indexOf('<');
+        while (i >= 0 && i < length - 1) {
+            if (html.startsWith("<!--", i)) {
+                final var end = html.indexOf("-->", i + 4);
+                if (end < 0) break;
+                i = html.indexOf('<', end + 3);
+                continue;
+            }
+            // Read the tag name
+            var name_end = i + 1;
+            while (name_end < length && Character.isLetterOrDigit(html.charAt(name_end))) name_end++;
+            final var name = html.substring(i + 1, name_end);
+            final var tag_end = html.indexOf('>', name_end);
+            if (tag_end < 0) break;
+            if (links && (name.equalsIgnoreCase("a") || name.equalsIgnoreCase("base"))) {
+                final var href = attribute(html, name_end, tag_end, "href");
+                if (href != null && !href.isEmpty()) {
+                    if (name.length() == 1) hrefs.add(href);
+                    else if (base.equals(url)) base = href;
+                }
+            }
+            else if (!found_title && name.equalsIgnoreCase("title")) {
+                final var close = indexOfIgnoreCase(html, "</title", tag_end + 1);
+                if (close < 0) break;
+                title = Parser.unescapeEntities(html.substring(tag_end + 1, close), false).trim();
+                found_title = true;
+                if (!links) break;
+                i = html.indexOf('<', close + 1);
+                continue;
+            }
+            else if (name.equalsIgnoreCase("script") || name.equalsIgnoreCase("style")) {
+                // Raw text elements may contain markup that is not part of the page
+                final var close = indexOfIgnoreCase(html, "</" + name, tag_end + 1);
+                if (close < 0) break;
+                i = html.indexOf('<', close + 1);
+                continue;
+            }
+            i = html.indexOf('<', tag_end + 1);
+        }
+        if (!absolute || !links) return new Page(title, url, hrefs);
+        // Resolve relative <base href> values against the page itself
+        final var resolved_base = base.equals(url) ? url : new UrlCanonicalizer().canonicalize(base, url);
+        return new Page(title, resolved_base == null ? url : resolved_base, hrefs);
+    }
+
+    // Returns the unescaped value of an attribute within html[from, to), or null if absent
+    private static String attribute(String html, int from, int to, String attribute) {
+        var i = from;
+        while (i < to) {
+            while (i < to && (Character.isWhitespace(html.charAt(i)) || html.charAt(i) == '/')) i++;
+            final var name_start = i;
+            while (i < to && html.charAt(i) != '=' && html.charAt(i) != '>' && !Character.isWhitespace(html.charAt(i))) i++;
+            final var name = html.substring(name_start, i);
+            while (i < to && Character.isWhitespace(html.charAt(i))) i++;
+            if (i >= to || html.charAt(i) != '=') {
+                if (name.isEmpty()) i++;
+                continue;
+            }
+            i++;
+            while (i < to && Character.isWhitespace(html.charAt(i))) i++;
+            final int value_start;
+            final int value_end;
+            if (i < to && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+                final var quote = html.charAt(i);
+                value_start = i + 1;
+                final var close = html.indexOf(quote, value_start);
+                value_end = close < 0 || close > to ? to : close;
+                i = value_end + 1;
+            }
+            else {
+                value_start = i;
+                while (i < to && !Character.isWhitespace(html.charAt(i))) i++;
+                value_end = i;
+            }
+            if (name.equalsIgnoreCase(attribute)) return Parser.unescapeEntities(html.substring(value_start, value_end), true).trim();
+        }
+        return null;
+    }
+
+    // Case insensitive indexOf for ascii needles
+    private static int indexOfIgnoreCase(String html, String needle, int from) {
+        final var last = html.length() - needle.length();
+        for (var i = from; i <= last; i++) {
+            if (html.regionMatches(true, i, needle, 0, needle.length())) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,61 @@
+package crawler;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A row of the pages table. Besides the title of a page, a re-crawl keeps the
+ * validators of its last fetch, so that the next fetch can be made conditional and
+ * a page served in full can still be recognized as unchanged by its content hash.
+ */
+final class PageRecord {
+
+    final String url;
+    final String title;
+    final Integer depth; // Depth the page was crawled at, null for a row written without validators
+    final String etag; // ETag of the last fetch, null if none was sent
+    final String last_modified; // Last-Modified of the last fetch, null if none was sent
+    final Long hash; // Fingerprint of the body of the last fetch, null if unknown
+    final long length; // Bytes of the body of the last fetch
+
+    // Constructs a PageRecord without validators
+    PageRecord(String url, String title) {
+        this(url, title, null, null, null, null, 0);
+    }
+
+    // Constructs a PageRecord with validators
+    PageRecord(String url, String title, Integer depth, String etag, String last_modified, Long hash, long length) {
+        this.url = url;
+        this.title = title;
+        this.depth = depth;
+        this.etag = etag;
+        this.last_modified = last_modified;
+        this.hash = hash;
+        this.length = length;
+    }
+
+    /**
+     * @param title title of the page
+     * @return this record with the given title
+     */
+    PageRecord titled(String title) {
+        return new PageRecord(url, title, depth, etag, last_modified, hash, length);
+    }
+
+    /**
+     * Passes the headers that make a request conditional on this record to header.
+     *
+     * @param header receives each header name and value
+     */
+    void condition(BiConsumer<String, String> header) {
+        if (etag != null) header.accept("If-None-Match", etag);
+        if (last_modified != null) header.accept("If-Modified-Since", last_modified);
+    }
+
+    /**
+     * @param fetched record of a new fetch of the same page
+     * @return whether the new fetch has the same content as the one this record was made of
+     */
+    boolean unchanged(PageRecord fetched) {
+        return hash != null && hash.equals(fetched.hash) && length == fetched.length;
+    }
+}
@@ -0,0 +1,177 @@
+package crawler;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams pages to the database while the crawl is running. Workers push pages
+ * into a bounded queue and a background writer flushes them in batches once
+ * batch_size pages are waiting or flush_millis have passed, so pages never pile
+ * up on the heap and are durable shortly after they are parsed. Pages that can
+ * never be written, because the database still fails once the sink is closed or
+ * because they arrive after it was closed, are counted as DATABASE failures and
+ * left out of the processed pages reported to progress.
+ */
+class PageSink {
+
+    private static final int final_attempts = 3; // Writes of the last pages tried once the sink is closed
+
+    private final PageUploader uploader; // Supplies the database connection and insert statement
+    private final BlockingQueue<PageRecord> pending; // Pages waiting for the writer
+    private final int batch_size; // Pages per flush
+    private final long flush_millis; // Longest time a page waits before being flushed
+    private final PageUploader.Progress progress; // Receives the running totals after each flush
+    private final CrawlMetrics metrics; // Counts the pages that could not be written
+    private final Thread writer = new Thread(this::write, "page-sink");
+
+    private volatile boolean closed = false;
+    private final AtomicInteger offering = new AtomicInteger(); // Offers under way, the writer waits for them once closed
+    private final AtomicInteger lost = new AtomicInteger(); // Pages that will never be written
+    private int written = 0; // Only touched by the writer thread until it has stopped
+    private int added = 0; // Only touched by the writer thread until it has stopped
+
+    // Constructs a PageSink writing through the uploader's database
+    PageSink(PageUploader uploader, int capacity, int batch_size, long flush_millis, PageUploader.Progress progress, CrawlMetrics metrics) {
+        if (capacity < batch_size || batch_size < 1) throw new IllegalArgumentException("capacity or batch_size invalid");
+        this.uploader = uploader;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.batch_size = batch_size;
+        this.flush_millis = flush_millis;
+        this.progress = progress;
+        this.metrics = metrics;
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts the background writer.
+     */
+    void start() {
+        writer.start();
+    }
+
+    /**
+     * Queues a page for writing, blocking while the queue is full so that a slow
+     * database slows the crawl down instead of growing the heap.
+     *
+     * @param page the page
+     * @return false if the sink was closed or its writer stopped before the page could be
+     *         queued, the page is then counted as lost
+     */
+    boolean offer(PageRecord page) {
+        // Counted before closed is read, so that a writer closing down waits for this page
+        offering.incrementAndGet();
+        try {
+            while (!closed && writer.isAlive()) {
+                if (pending.offer(page, flush_millis, TimeUnit.MILLISECONDS)) return true;
+            }
+        }
+        catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            offering.decrementAndGet();
+        }
+        lose(1);
+        return false;
+    }
+
+    /**
+     * Stops accepting pages, flushes whatever is queued and waits for the writer.
+     * The last pages are retried a few times if the database fails, then counted
+     * as lost.
+     */
+    void close() {
+        closed = true;
+        try {
+            writer.join();
+            // The writer gave up or died, pages queued since then will never be written
+            while (offering.get() > 0) Thread.sleep(1);
+        }
+        catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        lose(pending.drainTo(new ArrayList<>()));
+        progress.update(written, written + lost.get(), added, written - added);
+    }
+
+    // Counts pages that will never be written
+    private void lose(int pages) {
+        if (pages == 0) return;
+        lost.addAndGet(pages);
+        metrics.fail(CrawlMetrics.Failure.DATABASE, pages);
+    }
+
+    // Writer loop, batches pages until the sink is closed and the queue is drained
+    private void write() {
+        final var batch = new ArrayList<PageRecord>(batch_size);
+        Connection conn = null;
+        PreparedStatement ps = null;
+        var max_bytes = 0L; // Of a batch on conn
+        var deadline = System.currentTimeMillis() + flush_millis;
+        var attempts = 0; // Failed writes since the sink was closed
+        try {
+            while (!closed || offering.get() > 0 || !pending.isEmpty() || !batch.isEmpty()) {
+                final var next = pending.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (next != null) batch.add(next);
+                pending.drainTo(batch, batch_size - batch.size());
+                final var due = System.currentTimeMillis() >= deadline || closed;
+                if (batch.size() < batch_size && !(due && !batch.isEmpty())) {
+                    if (due) deadline = System.currentTimeMillis() + flush_millis;
+                    continue;
+                }
+                try {
+                    if (conn == null) {
+                        conn = uploader.connect();
+                        ps = uploader.prepare(conn);
+                        max_bytes = uploader.batchBytes(conn);
+                    }
+                    // Pages are dropped from the batch as they are written, so a failure only keeps the rest
+                    while (!batch.isEmpty()) {
+                        var bytes = 0L;
+                        var rows = 0;
+                        for (; rows < batch.size(); rows++) {
+                            final var size = PageUploader.size(batch.get(rows));
+                            if (rows > 0 && bytes + size > max_bytes) break;
+                            uploader.bind(ps, batch.get(rows));
+                            ps.addBatch();
+                            bytes += size;
+                        }
+                        added += uploader.executeBatch(conn, ps, rows);
+                        written += rows;
+                        batch.subList(0, rows).clear();
+                        progress.update(written, written + lost.get(), added, written - added);
+                    }
+                }
+                catch (SQLException failed) {
+                    // Keep the batch and reconnect on the next flush
+                    close(conn);
+                    conn = null;
+                    ps = null;
+                    if (closed && ++attempts == final_attempts) break;
+                    Thread.sleep(flush_millis);
+                }
+                deadline = System.currentTimeMillis() + flush_millis;
+            }
+        }
+        catch (InterruptedException ignored) {}
+        finally {
+            close(conn);
+            lose(batch.size());
+        }
+    }
+
+    // Closes a connection, ignoring failures as the connection is being discarded
+    private static void close(Connection conn) {
+        if (conn == null) return;
+        try {
+            conn.close();
+        }
+        catch (SQLException ignored) {}
+    }
+}
@@ -0,0 +1,342 @@
+package crawler;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Uploads crawled pages to the pages table on its own thread. One connection and
+ * one prepared statement are used for a whole upload, rows are sent in JDBC batches
+ * and duplicates are skipped by INSERT IGNORE rather than reported as exceptions.
+ * A batch is also cut short before its rows could outgrow half of the server's
+ * max_allowed_packet, so that Connector/J always rewrites it into a single insert.
+ * <p>
+ * For a re-crawl the pages table also holds the depth and validators of each page
+ * (Depth, ETag, LastModified, Hash and Length), and pages that were crawled before
+ * are updated instead of skipped. The table is only altered to add these columns
+ * by an explicit migrate().
+ */
+class PageUploader {
+
+    // Default database, rewriteBatchedStatements lets Connector/J send a batch as one multi-row insert
+    static final String DEFAULT_URL = "jdbc:mysql://localhost:3306/crawled_pages?useSSL=false&rewriteBatchedStatements=true";
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final long DEFAULT_MAX_PACKET = 1024 * 1024; // max_allowed_packet assumed when the server does not tell
+
+    private static final String insert = "insert ignore into pages (Title, URL) values (?, ?)";
+    private static final String upsert = "insert into pages (Title, URL, Depth, ETag, LastModified, Hash, Length) values (?, ?, ?, ?, ?, ?, ?)"
+            + " on duplicate key update Title = values(Title), Depth = values(Depth), ETag = values(ETag),"
+            + " LastModified = values(LastModified), Hash = values(Hash), Length = values(Length)";
+    // Pages after a depth and url in depth order, a page of rows at a time so no cursor stays open between them
+    private static final String select = "select URL, Title, Depth, ETag, LastModified, Hash, Length from pages"
+            + " where Depth is not null and (Depth > ? or Depth = ? and URL > ?) order by Depth, URL limit ?";
+    private static final String[][] validator_columns = {
+            {"Depth", "int null"}, {"ETag", "varchar(255) null"}, {"LastModified", "varchar(64) null"}, {"Hash", "bigint null"}, {"Length", "bigint null"}
+    };
+
+    /**
+     * Receives the running totals of an upload after each batch.
+     */
+    interface Progress {
+        void update(int processed, int total, int added, int redundant);
+    }
+
+    private final String url; // JDBC url of the database
+    private final String user; // Database user
+    private final String password; // Database password
+    private final int batch_size; // Rows sent per executeBatch
+    private final CrawlMetrics metrics; // Receives the time of every batch and failed writes
+    private final boolean recrawl; // Whether validators are written along with the pages
+    private final ExecutorService uploader; // Runs uploads apart from the crawl workers
+
+    // Constructs a PageUploader for the given database
+    PageUploader(String url, String user, String password, int batch_size, CrawlMetrics metrics, boolean recrawl) {
+        if (batch_size < 1) throw new IllegalArgumentException("batch_size invalid");
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.batch_size = batch_size;
+        this.metrics = metrics;
+        this.recrawl = recrawl;
+        // A daemon thread that exits once idle, so a finished crawl never keeps the JVM alive
+        final var executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Crawler.daemon("page-upload"));
+        executor.allowCoreThreadTimeOut(true);
+        this.uploader = executor;
+    }
+
+    /**
+     * Opens a connection to the database. Also used by the streaming sink so both
+     * upload paths share the same configuration.
+     *
+     * @return a new connection
+     * @throws SQLException if the database cannot be reached
+     */
+    Connection connect() throws SQLException {
+        try {
+            return DriverManager.getConnection(url, user, password);
+        }
+        catch (SQLException failed) {
+            metrics.fail(CrawlMetrics.Failure.DATABASE);
+            throw failed;
+        }
+    }
+
+    /**
+     * Prepares the insert statement used for every batch.
+     *
+     * @param conn connection to prepare the statement on
+     * @return the prepared insert
+     * @throws SQLException if the statement cannot be prepared
+     */
+    PreparedStatement prepare(Connection conn) throws SQLException {
+        return conn.prepareStatement(recrawl ? upsert : insert);
+    }
+
+    /**
+     * Reads the bytes of rows a batch may carry on a connection. Connector/J splits a
+     * rewritten batch larger than max_allowed_packet into several inserts, and then
+     * ROW_COUNT() only covers the last of them, so batches are kept to half of it,
+     * leaving room for the statement itself and for escaping.
+     *
+     * @param conn connection the batches run on
+     * @return the most bytes of rows per batch, as estimated by size()
+     */
+    long batchBytes(Connection conn) {
+        try (final var statement = conn.createStatement(); final var rows = statement.executeQuery("select @@max_allowed_packet")) {
+            if (rows.next() && rows.getLong(1) > 0) return rows.getLong(1) / 2;
+        }
+        // Not a MySQL server, assume the smallest default
+        catch (SQLException unknown) {}
+        return DEFAULT_MAX_PACKET / 2;
+    }
+
+    /**
+     * @param page a page
+     * @return the most bytes the row of the page takes in a rewritten insert, before escaping
+     */
+    static long size(PageRecord page) {
+        return 64 + 4L * (length(page.title) + length(page.url) + length(page.etag) + length(page.last_modified));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Sets the parameters of the prepared insert to a page.
+     *
+     * @param ps the prepared insert
+     * @param page the page
+     * @throws SQLException if a parameter cannot be set
+     */
+    void bind(PreparedStatement ps, PageRecord page) throws SQLException {
+        ps.setString(1, page.title);
+        ps.setString(2, page.url);
+        if (!recrawl) return;
+        if (page.depth == null) ps.setNull(3, Types.INTEGER);
+        else ps.setInt(3, page.depth);
+        ps.setString(4, page.etag);
+        ps.setString(5, page.last_modified);
+        if (page.hash == null) ps.setNull(6, Types.BIGINT);
+        else ps.setLong(6, page.hash);
+        ps.setLong(7, page.length);
+    }
+
+    /**
+     * Adds the validator columns a re-crawl needs to the pages table if it lacks them.
+     *
+     * @throws SQLException if the database cannot be read or altered
+     */
+    void migrate() throws SQLException {
+        try (final var conn = connect(); final var statement = conn.createStatement()) {
+            final var columns = columns(conn);
+            for (var column : validator_columns) {
+                if (!columns.contains(column[0].toLowerCase(Locale.ROOT))) {
+                    statement.executeUpdate("alter table pages add column " + column[0] + ' ' + column[1]);
+                }
+            }
+        }
+        catch (SQLException failed) {
+            metrics.fail(CrawlMetrics.Failure.DATABASE);
+            throw failed;
+        }
+    }
+
+    /**
+     * Checks that the pages table has the validator columns a re-crawl needs.
+     *
+     * @throws SQLException if the database cannot be read or a column is missing
+     */
+    void checkColumns() throws SQLException {
+        try (final var conn = connect()) {
+            final var columns = columns(conn);
+            for (var column : validator_columns) {
+                if (!columns.contains(column[0].toLowerCase(Locale.ROOT))) {
+                    throw new SQLException("pages table lacks the " + column[0] + " column, migrate it first");
+                }
+            }
+        }
+        catch (SQLException failed) {
+            metrics.fail(CrawlMetrics.Failure.DATABASE);
+            throw failed;
+        }
+    }
+
+    // The lower case names of the columns of the pages table
+    private static Set<String> columns(Connection conn) throws SQLException {
+        final var columns = new HashSet<String>();
+        try (final var rows = conn.getMetaData().getColumns(conn.getCatalog(), null, "pages", null)) {
+            while (rows.next()) columns.add(rows.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+        }
+        return columns;
+    }
+
+    /**
+     * Reads the pages of the previous crawl for a re-crawl, shallowest first and by
+     * url within a depth, leaving out rows written without validators. Rows are read
+     * batch_size at a time by one query each, so only those of one query are ever
+     * held, and page may block between them without holding a cursor open.
+     *
+     * @param max_depth depth of the deepest pages read
+     * @param page receives each page in turn, returning false to stop reading
+     * @throws SQLException if the database cannot be read
+     */
+    void load(int max_depth, Predicate<PageRecord> page) throws SQLException {
+        try (final var conn = connect(); final var ps = conn.prepareStatement(select)) {
+            var depth = -1;
+            var url = "";
+            for (var read = batch_size; read == batch_size; ) {
+                ps.setInt(1, depth);
+                ps.setInt(2, depth);
+                ps.setString(3, url);
+                ps.setInt(4, batch_size);
+                final var pages = new ArrayList<PageRecord>(batch_size);
+                try (final var rows = ps.executeQuery()) {
+                    while (rows.next()) {
+                        final var hash = rows.getLong(6);
+                        final Long row_hash = rows.wasNull() ? null : hash;
+                        pages.add(new PageRecord(rows.getString(1), rows.getString(2), rows.getInt(3), rows.getString(4), rows.getString(5),
+                                row_hash, rows.getLong(7)));
+                    }
+                }
+                read = pages.size();
+                for (var next : pages) {
+                    if (next.depth > max_depth || !page.test(next)) return;
+                    depth = next.depth;
+                    url = next.url;
+                }
+            }
+        }
+        catch (SQLException failed) {
+            metrics.fail(CrawlMetrics.Failure.DATABASE);
+            throw failed;
+        }
+    }
+
+    /**
+     * Submits an upload of every page to the upload thread.
+     *
+     * @param pages crawled pages keyed by url with their titles as values
+     * @param records validators of the pages keyed by url for a re-crawl, null otherwise
+     * @param progress receives the totals after each batch
+     * @return the pending upload, failing with the SQLException if the upload failed
+     */
+    Future<?> upload(Map<String, String> pages, Map<String, PageRecord> records, Progress progress) {
+        return uploader.submit(() -> {
+            final var total = pages.size();
+            var processed = 0;
+            var added = 0;
+            try (final var conn = connect(); final var ps = prepare(conn)) {
+                final var max_bytes = batchBytes(conn);
+                var batched = 0;
+                var bytes = 0L;
+                for (var entry : pages.entrySet()) {
+                    final var record = records == null ? null : records.get(entry.getKey());
+                    final var page = record == null ? new PageRecord(entry.getKey(), entry.getValue()) : record;
+                    final var size = size(page);
+                    if (batched == batch_size || batched > 0 && bytes + size > max_bytes) {
+                        added += executeBatch(conn, ps, batched);
+                        processed += batched;
+                        batched = 0;
+                        bytes = 0;
+                        progress.update(processed, total, added, processed - added);
+                    }
+                    bind(ps, page);
+                    ps.addBatch();
+                    batched++;
+                    bytes += size;
+                }
+                if (batched > 0) {
+                    added += executeBatch(conn, ps, batched);
+                    processed += batched;
+                }
+            }
+            progress.update(processed, total, added, processed - added);
+            return null;
+        });
+    }
+
+    /**
+     * Executes the rows batched on ps and returns how many of them were inserted.
+     * Rows ignored by INSERT IGNORE report an update count of 0 and rows updated by a
+     * re-crawl an update count of 2. When Connector/J
+     * rewrites a batch into a single multi-row insert it reports SUCCESS_NO_INFO
+     * for every row, in which case the inserted rows are worked out from ROW_COUNT(),
+     * which is only right as long as the batch was kept within batchBytes().
+     * The time of the batch is recorded as an UPLOAD.
+     *
+     * @param conn connection the batch runs on
+     * @param ps statement holding the batch
+     * @param batched number of rows in the batch
+     * @return number of rows inserted
+     * @throws SQLException if the batch failed
+     */
+    int executeBatch(Connection conn, PreparedStatement ps, int batched) throws SQLException {
+        final var started = System.nanoTime();
+        try {
+            final var counts = ps.executeBatch();
+            var added = 0;
+            var unknown = false;
+            for (var count : counts) {
+                if (count == 1) added++;
+                else if (count == Statement.SUCCESS_NO_INFO) unknown = true;
+            }
+            if (!unknown) return added;
+            try (final var statement = conn.createStatement(); final var rows = statement.executeQuery("select row_count()")) {
+                if (!rows.next()) return batched;
+                // Inserted rows count once and updated rows twice, so with every row either one
+                // of the two, 2 * batched - ROW_COUNT() of them were inserted
+                final var changed = recrawl ? 2L * batched - rows.getLong(1) : rows.getLong(1);
+                return (int)Math.min(batched, Math.max(0, changed));
+            }
+        }
+        catch (SQLException failed) {
+            metrics.fail(CrawlMetrics.Failure.DATABASE);
+            throw failed;
+        }
+        finally {
+            metrics.record(CrawlMetrics.Stage.UPLOAD, started);
+        }
+    }
+
+    /**
+     * Stops the upload thread once pending uploads have finished.
+     */
+    void shutdown() {
+        uploader.shutdown();
+    }
+}
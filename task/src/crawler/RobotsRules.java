@@ -0,0 +1,120 @@
+package crawler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The rules of a robots.txt file that apply to every user agent, that is the
+ * User-agent: * group. Paths are matched against Allow and Disallow patterns,
+ * supporting the * and $ wildcards, and the longest matching pattern wins.
+ */
+class RobotsRules {
+
+    // Rules of a host without a robots.txt, everything is allowed
+    static final RobotsRules allow_all = new RobotsRules(List.of(), List.of(), 0L);
+
+    private final List<String> allow; // Allow patterns
+    private final List<String> disallow; // Disallow patterns
+    private final long crawl_delay; // Milliseconds between requests asked for by the host
+
+    private RobotsRules(List<String> allow, List<String> disallow, long crawl_delay) {
+        this.allow = allow;
+        this.disallow = disallow;
+        this.crawl_delay = crawl_delay;
+    }
+
+    /**
+     * Parses the User-agent: * group of a robots.txt file.
+     *
+     * @param robots the content of the file
+     * @return the rules of the group, allowing everything if there is none
+     */
+    static RobotsRules parse(String robots) {
+        final var allow = new ArrayList<String>();
+        final var disallow = new ArrayList<String>();
+        var crawl_delay = 0L;
+        var in_group = false; // Whether the current group applies to every agent
+        var reading_agents = false; // Whether consecutive User-agent lines are being read
+        for (var line : robots.split("\r?\n|\r")) {
+            final var comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            final var colon = line.indexOf(':');
+            if (colon < 0) continue;
+            final var field = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final var value = line.substring(colon + 1).trim();
+            if (field.equals("user-agent")) {
+                // A User-agent line after rules starts a new group
+                if (!reading_agents) in_group = false;
+                reading_agents = true;
+                if (value.equals("*")) in_group = true;
+                continue;
+            }
+            reading_agents = false;
+            if (!in_group) continue;
+            switch (field) {
+                case "allow": if (!value.isEmpty()) allow.add(value); break;
+                case "disallow": if (!value.isEmpty()) disallow.add(value); break;
+                case "crawl-delay":
+                    try {
+                        crawl_delay = (long)(Double.parseDouble(value) * 1000);
+                    }
+                    catch (NumberFormatException ignored) {}
+                    break;
+                default: break;
+            }
+        }
+        if (allow.isEmpty() && disallow.isEmpty() && crawl_delay == 0) return allow_all;
+        return new RobotsRules(allow, disallow, crawl_delay);
+    }
+
+    /**
+     * @return milliseconds between requests asked for by the host, 0 if none
+     */
+    long crawlDelay() {
+        return crawl_delay;
+    }
+
+    /**
+     * @param path the path and query of a url
+     * @return whether the url may be fetched
+     */
+    boolean allows(String path) {
+        var longest_allow = -1;
+        for (var pattern : allow) if (pattern.length() > longest_allow && matches(pattern, path)) longest_allow = pattern.length();
+        var longest_disallow = -1;
+        for (var pattern : disallow) if (pattern.length() > longest_disallow && matches(pattern, path)) longest_disallow = pattern.length();
+        return longest_disallow < 0 || longest_allow >= longest_disallow;
+    }
+
+    // Matches a path against a robots.txt pattern, which is a prefix unless it ends in $. Each * first matches
+    // as little as it can, a mismatch only moves the last * on by one character, as an earlier * can never
+    // have to match more once a later one has matched, so a match takes at most pattern by path steps
+    private static boolean matches(String pattern, String path) {
+        final var anchored = pattern.endsWith("$");
+        final var end = anchored ? pattern.length() - 1 : pattern.length();
+        var p = 0;
+        var i = 0;
+        var star = -1; // Index of the pattern after the last *, -1 before any
+        var star_end = 0; // Index of the path the last * matches up to
+        while (true) {
+            if (p == end) {
+                if (!anchored || i == path.length()) return true;
+            }
+            else if (pattern.charAt(p) == '*') {
+                star = ++p;
+                star_end = i;
+                continue;
+            }
+            else if (i < path.length() && path.charAt(i) == pattern.charAt(p)) {
+                p++;
+                i++;
+                continue;
+            }
+            // Let the last * match one more character
+            if (star < 0 || star_end == path.length()) return false;
+            p = star;
+            i = ++star_end;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package crawler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A temporary file of lines read back in the order they were appended, used to
+ * hold queued urls that do not fit in memory. The file starts over empty once
+ * every line has been read. Not thread safe, callers hold their own lock.
+ */
+class SpillFile {
+
+    private final Path file;
+    private BufferedWriter writer = null; // Appends to file
+    private BufferedReader reader = null; // Reads file from the start
+    private int size = 0; // Lines appended and not read back yet
+
+    // Creates an empty SpillFile in directory, deleted when the JVM exits
+    SpillFile(Path directory, String prefix) throws IOException {
+        file = Files.createTempFile(directory, prefix, ".spill");
+        file.toFile().deleteOnExit();
+    }
+
+    /**
+     * @return the number of lines appended and not read back yet
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends a line, which must not contain a line break.
+     *
+     * @param line the line to append
+     * @return false if the line could not be written
+     */
+    boolean append(String line) {
+        try {
+            if (writer == null) writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write(line);
+            writer.newLine();
+            size++;
+            return true;
+        }
+        catch (IOException failed) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the oldest line not read yet.
+     *
+     * @return the line, or null if there is none
+     * @throws IOException if the rest of the file cannot be read, it is then discarded
+     */
+    String next() throws IOException {
+        if (size == 0) return null;
+        try {
+            writer.flush();
+            if (reader == null) reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            final var line = reader.readLine();
+            if (line == null) throw new IOException("spill file truncated");
+            // Once everything has been read back the file can start over empty
+            if (--size == 0) clear();
+            return line;
+        }
+        catch (IOException failed) {
+            clear();
+            throw failed;
+        }
+    }
+
+    /**
+     * Discards every line, truncating the file on the next append.
+     */
+    void clear() {
+        try {
+            if (reader != null) reader.close();
+            if (writer != null) writer.close();
+        }
+        catch (IOException ignored) {}
+        reader = null;
+        writer = null;
+        size = 0;
+    }
+
+    /**
+     * Discards every line and deletes the file.
+     */
+    void delete() {
+        clear();
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,148 @@
+package crawler;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Resolves hrefs against the page they were found on and reduces them to a single
+ * canonical form, so that aliases of one page map to the same key in the crawl.
+ * Resolution is done by java.net.URI, and each normalization step can be turned
+ * on or off through a Rule.
+ */
+class UrlCanonicalizer {
+
+    /**
+     * Normalization steps applied after an href has been resolved.
+     */
+    enum Rule {
+        STRIP_FRAGMENT,        // https://example.com/page#top        -> https://example.com/page
+        REMOVE_DOT_SEGMENTS,   // https://example.com/a/../b          -> https://example.com/b
+        STRIP_DEFAULT_PORT,    // https://example.com:443/            -> https://example.com/
+        LOWERCASE_HOST,        // https://Example.COM/                -> https://example.com/
+        STRIP_TRACKING_PARAMS  // https://example.com/?utm_source=x&a -> https://example.com/?a
+    }
+
+    // Query parameters that only identify where a visitor came from
+    static final Set<String> TRACKING_PARAMS = Set.of(
+            "utm_source", "utm_medium", "utm_campaign", "utm_term", "utm_content",
+            "gclid", "fbclid", "msclkid", "mc_cid", "mc_eid", "_ga", "ref_src"
+    );
+
+    private final EnumSet<Rule> rules; // Normalization steps to apply
+    private final Set<String> tracking_params; // Query parameter names dropped by STRIP_TRACKING_PARAMS
+
+    // Constructs a UrlCanonicalizer applying the given rules
+    UrlCanonicalizer(EnumSet<Rule> rules, Set<String> tracking_params) {
+        this.rules = EnumSet.copyOf(rules);
+        this.tracking_params = Set.copyOf(tracking_params);
+    }
+
+    // Constructs a UrlCanonicalizer applying every rule
+    UrlCanonicalizer() {
+        this(EnumSet.allOf(Rule.class), TRACKING_PARAMS);
+    }
+
+    /**
+     * Resolves a link against the url of the page it was found on and normalizes
+     * the result.
+     *
+     * @param link href value to resolve
+     * @param base url of the page containing the link
+     * @return the canonical absolute url, or null if the link is malformed, has a port out of range or is not http(s)
+     */
+    String canonicalize(String link, String base) {
+        try {
+            var base_uri = new URI(base.trim());
+            // URI.resolve drops the separator when the base has an empty path
+            if (base_uri.getRawPath() == null || base_uri.getRawPath().isEmpty()) {
+                base_uri = new URI(base_uri.getScheme(), base_uri.getRawAuthority(), "/", null, null);
+            }
+            final var reference = toUri(link);
+            // URI.resolve follows RFC 2396 and drops the last path segment for query-only links
+            if (reference.getScheme() == null && reference.getRawAuthority() == null && reference.getRawPath().isEmpty() && reference.getRawQuery() != null) {
+                final var fragment = reference.getRawFragment() == null ? "" : '#' + reference.getRawFragment();
+                return normalize(new URI(base_uri.getScheme() + "://" + base_uri.getRawAuthority() + base_uri.getRawPath() + '?' + reference.getRawQuery() + fragment));
+            }
+            return normalize(base_uri.resolve(reference));
+        }
+        catch (URISyntaxException | IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Normalizes an absolute url.
+     *
+     * @param url absolute url to normalize
+     * @return the canonical url, or null if the url is malformed, has a port out of range or is not http(s)
+     */
+    String canonicalize(String url) {
+        try {
+            return normalize(toUri(url));
+        }
+        catch (URISyntaxException | IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
+    // Parses an href, escaping the characters browsers tolerate but URI rejects
+    private static URI toUri(String link) throws URISyntaxException {
+        var trimmed = link.trim();
+        if (trimmed.indexOf(' ') >= 0) trimmed = trimmed.replace(" ", "%20");
+        if (trimmed.indexOf('|') >= 0) trimmed = trimmed.replace("|", "%7C");
+        return new URI(trimmed);
+    }
+
+    // Assembles the canonical string from the components of a resolved URI
+    private String normalize(URI uri) {
+        if (uri.isOpaque() || uri.getScheme() == null || uri.getHost() == null) return null;
+        final var scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https")) return null;
+        if (rules.contains(Rule.REMOVE_DOT_SEGMENTS)) uri = uri.normalize();
+
+        final var canonical = new StringBuilder(scheme.length() + 3 + uri.toString().length());
+        canonical.append(scheme).append("://");
+        if (uri.getRawUserInfo() != null) canonical.append(uri.getRawUserInfo()).append('@');
+        canonical.append(rules.contains(Rule.LOWERCASE_HOST) ? uri.getHost().toLowerCase(Locale.ROOT) : uri.getHost());
+        final var port = uri.getPort();
+        // URI takes any number as a port, no connection can be made to one out of range
+        if (port == 0 || port > 65535) return null;
+        final var default_port = (scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443);
+        if (port != -1 && !(default_port && rules.contains(Rule.STRIP_DEFAULT_PORT))) canonical.append(':').append(port);
+
+        final var path = uri.getRawPath();
+        canonical.append(path == null || path.isEmpty() ? "/" : path);
+
+        var query = uri.getRawQuery();
+        if (query != null && rules.contains(Rule.STRIP_TRACKING_PARAMS)) query = stripTrackingParams(query);
+        if (query != null && !query.isEmpty()) canonical.append('?').append(query);
+
+        if (uri.getRawFragment() != null && !rules.contains(Rule.STRIP_FRAGMENT)) canonical.append('#').append(uri.getRawFragment());
+        return canonical.toString();
+    }
+
+    // Removes tracking parameters from a raw query string, keeping the order of the rest
+    private String stripTrackingParams(String query) {
+        StringBuilder kept = null;
+        var start = 0;
+        while (start <= query.length()) {
+            var end = query.indexOf('&', start);
+            if (end < 0) end = query.length();
+            final var equals = query.indexOf('=', start);
+            final var name = query.substring(start, equals >= start && equals < end ? equals : end);
+            if (tracking_params.contains(name)) {
+                // Only allocate a new query once something is actually dropped
+                if (kept == null) kept = new StringBuilder(query.length()).append(query, 0, Math.max(0, start - 1));
+            }
+            else if (kept != null) {
+                if (kept.length() > 0) kept.append('&');
+                kept.append(query, start, end);
+            }
+            start = end + 1;
+        }
+        return kept == null ? query : kept.toString();
+    }
+}